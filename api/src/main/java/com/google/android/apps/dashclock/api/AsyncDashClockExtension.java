@@ -0,0 +1,333 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.dashclock.api;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Base class for DashClock extensions whose updates complete asynchronously, for example after a
+ * network request or a location fix. Instead of {@link #onUpdateData(int)}, subclasses implement
+ * {@link #onUpdateDataAsync(int, UpdateRequest)}, which should start the work and return right
+ * away. The work then completes by calling {@link UpdateRequest#publish(ExtensionData)} or
+ * {@link UpdateRequest#finish()} from any thread.
+ *
+ * <p>
+ * Only one update is in flight at a time. When DashClock requests a newer update, the in-flight
+ * request is cancelled: its {@link UpdateRequest#setOnCancelListener(Runnable) cancel listener}
+ * runs, and anything it later tries to publish is dropped. Each update also has a deadline (see
+ * {@link #getUpdateDeadlineMillis(int)}); when it expires, the request is cancelled and
+ * {@link #onUpdateDeadlineExpired(int)} is called, which by default leaves the previously
+ * published data in place.
+ *
+ * <p>
+ * Below is a simple example:
+ *
+ * <pre class="prettyprint">
+ * public class ExampleAsyncExtension extends AsyncDashClockExtension {
+ *     protected void onUpdateDataAsync(int reason, final UpdateRequest request) {
+ *         final Call call = mClient.fetchStatus(new Callback() {
+ *             public void onStatus(String status) {
+ *                 request.publish(new ExtensionData()
+ *                         .visible(true)
+ *                         .icon(R.drawable.ic_extension_example)
+ *                         .status(status));
+ *             }
+ *         });
+ *         request.setOnCancelListener(new Runnable() {
+ *             public void run() {
+ *                 call.cancel();
+ *             }
+ *         });
+ *     }
+ * }
+ * </pre>
+ */
+public abstract class AsyncDashClockExtension extends DashClockExtension {
+    private static final String TAG = "AsyncDashClockExtension";
+
+    /**
+     * The default value returned by {@link #getUpdateDeadlineMillis(int)}.
+     */
+    public static final long DEFAULT_UPDATE_DEADLINE_MILLIS = 60 * 1000;
+
+    private final Object mLock = new Object();
+    private UpdateRequest mCurrentRequest;
+    private int mLastGeneration; // guarded by mLock
+
+    // Held while a request publishes, so that a request can't publish after a newer one has
+    // already published
+    private final Object mPublishOrderLock = new Object();
+    private int mLastPublishedGeneration; // guarded by mPublishOrderLock
+    private final Handler mDeadlineHandler = new Handler(Looper.getMainLooper());
+
+    @Override
+    public void onDestroy() {
+        UpdateRequest request;
+        synchronized (mLock) {
+            request = mCurrentRequest;
+            mCurrentRequest = null;
+        }
+        try {
+            if (request != null) {
+                request.cancel();
+            }
+        } finally {
+            mDeadlineHandler.removeCallbacksAndMessages(null);
+            super.onDestroy();
+        }
+    }
+
+    @Override
+    protected final void onUpdateData(int reason) {
+        synchronized (mPublishOrderLock) {
+            if (!onBeforeUpdateRequest(reason)) {
+                return;
+            }
+        }
+
+        UpdateRequest request;
+        UpdateRequest previousRequest;
+        synchronized (mLock) {
+            request = new UpdateRequest(reason, ++mLastGeneration);
+            previousRequest = mCurrentRequest;
+            mCurrentRequest = request;
+        }
+
+        // If a cancel listener or onUpdateDataAsync throws, finish the new request so that it
+        // doesn't stay in flight.
+        boolean started = false;
+        try {
+            if (previousRequest != null) {
+                previousRequest.cancel();
+            }
+
+            long deadlineMillis = getUpdateDeadlineMillis(reason);
+            if (deadlineMillis > 0) {
+                mDeadlineHandler.postDelayed(request.mDeadlineRunnable, deadlineMillis);
+            }
+
+            onUpdateDataAsync(reason, request);
+            started = true;
+        } finally {
+            if (!started) {
+                request.finish();
+            }
+        }
+    }
+
+    /**
+     * Called when the DashClock app process is requesting that the extension provide updated
+     * information to show to the user. Implementations should start any work needed to compute
+     * the update and return; the work completes by calling
+     * {@link UpdateRequest#publish(ExtensionData)} (or {@link UpdateRequest#finish()}, if there is
+     * nothing to publish) on the given request. This method is called on a background thread.
+     *
+     * @param reason  The reason for the update. See {@link #UPDATE_REASON_PERIODIC} and related
+     *                constants for more details.
+     * @param request The request to complete once the update is available.
+     */
+    protected abstract void onUpdateDataAsync(int reason, UpdateRequest request);
+
+    /**
+     * Returns how long, in milliseconds, an update requested for the given reason may take before
+     * it is cancelled and {@link #onUpdateDeadlineExpired(int)} is called. Return 0 or less for
+     * no deadline. The default is {@link #DEFAULT_UPDATE_DEADLINE_MILLIS}.
+     */
+    protected long getUpdateDeadlineMillis(int reason) {
+        return DEFAULT_UPDATE_DEADLINE_MILLIS;
+    }
+
+    /**
+     * Called when an update didn't complete before its deadline. The request has already been
+     * cancelled. Override this to publish an error state using
+     * {@link #publishUpdate(ExtensionData)}; by default, the previously published data stays in
+     * place. This method is called on the same background thread as
+     * {@link #onUpdateDataAsync(int, UpdateRequest)}.
+     *
+     * @param reason The reason of the update that timed out.
+     */
+    protected void onUpdateDeadlineExpired(int reason) {
+    }
+
+    /**
+     * Called before a new update request is started for the given reason, and before the
+     * in-flight request (if any) is cancelled. Request publishes are blocked while this runs, so
+     * anything it publishes can't interleave with them. Returns false if the update has been
+     * handled without a request, in which case no request is started and the in-flight request
+     * is left alone. For use by subclasses within the API.
+     */
+    boolean onBeforeUpdateRequest(int reason) {
+        return true;
+    }
+
+    /**
+     * Called after an update request completes by publishing data. For use by subclasses within
+     * the API.
+     */
+    void onUpdateRequestPublished(int reason, ExtensionData data) {
+    }
+
+    /**
+     * Returns the update request currently in flight, or <code>null</code> if there is none.
+     * Useful for publishing from callbacks (such as location updates) that aren't tied to a
+     * specific request.
+     */
+    protected final UpdateRequest getCurrentUpdateRequest() {
+        synchronized (mLock) {
+            return mCurrentRequest;
+        }
+    }
+
+    /**
+     * A single, asynchronously completed update. Requests complete at most once: the first of
+     * {@link #publish(ExtensionData)}, {@link #finish()}, cancellation by a newer update, or
+     * the deadline expiring wins, and anything after that is ignored. A request also never
+     * publishes over data published by a newer request.
+     */
+    public final class UpdateRequest {
+        private final int mReason;
+        private final int mGeneration;
+        private boolean mDone;
+        private boolean mCancelled;
+        private Runnable mOnCancelListener;
+
+        private final Runnable mDeadlineRunnable = new Runnable() {
+            @Override
+            public void run() {
+                if (!cancel()) {
+                    return;
+                }
+
+                Log.w(TAG, "Update didn't complete before its deadline; reason=" + mReason);
+                runOnWorker(new Runnable() {
+                    @Override
+                    public void run() {
+                        onUpdateDeadlineExpired(mReason);
+                    }
+                });
+            }
+        };
+
+        private UpdateRequest(int reason, int generation) {
+            mReason = reason;
+            mGeneration = generation;
+        }
+
+        /**
+         * Returns the reason this update was requested for.
+         */
+        public int getReason() {
+            return mReason;
+        }
+
+        /**
+         * Returns whether or not this request was cancelled, either because a newer update was
+         * requested or because its deadline expired. Long-running work can poll this to stop
+         * early.
+         */
+        public synchronized boolean isCancelled() {
+            return mCancelled;
+        }
+
+        /**
+         * Sets a listener to run (on an arbitrary thread) when this request is cancelled, e.g. to
+         * abort a network request. If the request is already cancelled, the listener runs
+         * immediately.
+         */
+        public void setOnCancelListener(Runnable listener) {
+            synchronized (this) {
+                if (!mCancelled) {
+                    mOnCancelListener = listener;
+                    return;
+                }
+            }
+            if (listener != null) {
+                listener.run();
+            }
+        }
+
+        /**
+         * Completes this request by publishing the given data, as with
+         * {@link #publishUpdate(ExtensionData)}. Does nothing if the request has already
+         * completed or been cancelled, or if a newer request has already published.
+         *
+         * @return Whether or not the data was published.
+         */
+        public boolean publish(ExtensionData data) {
+            if (!complete(false)) {
+                return false;
+            }
+
+            synchronized (mPublishOrderLock) {
+                if (mGeneration < mLastPublishedGeneration) {
+                    return false;
+                }
+                mLastPublishedGeneration = mGeneration;
+                publishUpdate(data);
+                onUpdateRequestPublished(mReason, data);
+            }
+            return true;
+        }
+
+        /**
+         * Completes this request without publishing anything, leaving the previously published
+         * data in place.
+         */
+        public void finish() {
+            complete(false);
+        }
+
+        private boolean cancel() {
+            Runnable listener;
+            synchronized (this) {
+                if (!complete(true)) {
+                    return false;
+                }
+                listener = mOnCancelListener;
+                mOnCancelListener = null;
+            }
+
+            if (listener != null) {
+                listener.run();
+            }
+            return true;
+        }
+
+        private boolean complete(boolean cancelled) {
+            synchronized (this) {
+                if (mDone) {
+                    return false;
+                }
+                mDone = true;
+                mCancelled = cancelled;
+                if (!cancelled) {
+                    mOnCancelListener = null;
+                }
+            }
+
+            mDeadlineHandler.removeCallbacks(mDeadlineRunnable);
+            synchronized (mLock) {
+                if (mCurrentRequest == this) {
+                    mCurrentRequest = null;
+                }
+            }
+            return true;
+        }
+    }
+}
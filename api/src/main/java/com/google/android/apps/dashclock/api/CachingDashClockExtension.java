@@ -0,0 +1,212 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.dashclock.api;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.JsonReader;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+/**
+ * Base class for DashClock extensions whose data is expensive to compute (for example, because
+ * it requires a network request) and doesn't need to be recomputed on every update. The last
+ * data published by {@link #onRefreshData(int, UpdateRequest)} is cached, and updates arriving
+ * within its time-to-live (see {@link #getCacheTtlMillis(int)}) are answered from the cache
+ * instead of refreshing. Answering from the cache leaves an in-flight refresh alone. The cache is
+ * also saved to private preferences, so it survives the extension's process being restarted
+ * (though not a reboot).
+ *
+ * <p>
+ * Updates with reason {@link #UPDATE_REASON_MANUAL} or {@link #UPDATE_REASON_SETTINGS_CHANGED}
+ * always refresh. When the cached data has expired, it is published right away and then
+ * refreshed in the background, so DashClock always has something to show.
+ *
+ * <p>
+ * Refreshes complete asynchronously, as described in {@link AsyncDashClockExtension}.
+ */
+public abstract class CachingDashClockExtension extends AsyncDashClockExtension {
+    private static final String TAG = "CachingDashClockExtension";
+
+    private static final String PREFS_NAME_PREFIX = "dashclock_extension_cache:";
+    private static final String PREF_HAS_DATA = "has_data";
+    private static final String PREF_DATA = "data";
+    private static final String PREF_DATA_ELAPSED_MILLIS = "data_elapsed_millis";
+
+    /**
+     * The default value returned by {@link #getCacheTtlMillis(int)}.
+     */
+    public static final long DEFAULT_CACHE_TTL_MILLIS = 10 * 60 * 1000;
+
+    private final Object mCacheLock = new Object();
+    // Guarded by mCacheLock
+    private boolean mCacheLoaded;
+    private boolean mHasCachedData;
+    private ExtensionData mCachedData;
+    private long mCachedDataElapsedMillis;
+
+    @Override
+    boolean onBeforeUpdateRequest(int reason) {
+        if (reason == UPDATE_REASON_MANUAL || reason == UPDATE_REASON_SETTINGS_CHANGED) {
+            return true;
+        }
+
+        boolean hasCachedData;
+        ExtensionData cachedData;
+        long cachedDataAgeMillis;
+        synchronized (mCacheLock) {
+            ensureCacheLoaded();
+            hasCachedData = mHasCachedData;
+            cachedData = mCachedData;
+            cachedDataAgeMillis = SystemClock.elapsedRealtime() - mCachedDataElapsedMillis;
+        }
+
+        if (!hasCachedData) {
+            return true;
+        }
+
+        // Publish the cached data even if it has expired, so that DashClock has something to
+        // show while refreshing. Re-publishing is cheap since identical data is never re-sent,
+        // and makes sure a newly connected DashClock gets it. Don't publish through a request,
+        // which would reset the data's age.
+        publishUpdate(cachedData);
+
+        // If the data is still fresh, there's nothing more to do, and a refresh that's already
+        // in flight (for example a manual one) keeps going.
+        return cachedDataAgeMillis < 0 || cachedDataAgeMillis >= getCacheTtlMillis(reason);
+    }
+
+    @Override
+    protected final void onUpdateDataAsync(int reason, UpdateRequest request) {
+        onRefreshData(reason, request);
+    }
+
+    @Override
+    void onUpdateRequestPublished(int reason, ExtensionData data) {
+        String dataJson = null;
+        boolean saveable = true;
+        if (data != null) {
+            try {
+                StringWriter stringWriter = new StringWriter();
+                data.serialize(new JsonWriter(stringWriter));
+                dataJson = stringWriter.toString();
+            } catch (IOException e) {
+                Log.w(TAG, "Couldn't save cached data.", e);
+                saveable = false;
+            }
+        }
+
+        long nowElapsedMillis = SystemClock.elapsedRealtime();
+        synchronized (mCacheLock) {
+            mCacheLoaded = true;
+            mHasCachedData = true;
+            mCachedData = data;
+            mCachedDataElapsedMillis = nowElapsedMillis;
+
+            // Saved under the lock, so that saves and invalidations land in order.
+            SharedPreferences.Editor editor = getCachePreferences().edit().clear();
+            if (saveable) {
+                editor.putBoolean(PREF_HAS_DATA, true)
+                        .putString(PREF_DATA, dataJson)
+                        .putLong(PREF_DATA_ELAPSED_MILLIS, nowElapsedMillis);
+            }
+            editor.apply();
+        }
+    }
+
+    /**
+     * Loads the cache saved by a previous instance of this extension, if it hasn't been loaded
+     * yet. Must be called with mCacheLock held.
+     */
+    private void ensureCacheLoaded() {
+        if (mCacheLoaded) {
+            return;
+        }
+
+        mCacheLoaded = true;
+        SharedPreferences sp = getCachePreferences();
+        long dataElapsedMillis = sp.getLong(PREF_DATA_ELAPSED_MILLIS, 0);
+        if (!sp.getBoolean(PREF_HAS_DATA, false)
+                || dataElapsedMillis > SystemClock.elapsedRealtime()) {
+            // Nothing saved, or saved before a reboot
+            return;
+        }
+
+        ExtensionData data = null;
+        String dataJson = sp.getString(PREF_DATA, null);
+        if (dataJson != null) {
+            try {
+                data = new ExtensionData();
+                data.deserialize(new JsonReader(new StringReader(dataJson)));
+            } catch (IOException | IllegalStateException e) {
+                Log.w(TAG, "Couldn't load cached data.", e);
+                return;
+            }
+        }
+
+        mHasCachedData = true;
+        mCachedData = data;
+        mCachedDataElapsedMillis = dataElapsedMillis;
+    }
+
+    private SharedPreferences getCachePreferences() {
+        return getSharedPreferences(PREFS_NAME_PREFIX + getClass().getName(),
+                Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Called when the cached data is missing or has expired, or when DashClock requests an update
+     * that always refreshes. Implementations should recompute the data and complete the request
+     * as described in {@link AsyncDashClockExtension#onUpdateDataAsync(int, UpdateRequest)};
+     * data published through the request is cached. This method is called on a background
+     * thread.
+     *
+     * @param reason  The reason for the update. See {@link #UPDATE_REASON_PERIODIC} and related
+     *                constants for more details.
+     * @param request The request to complete once the data is available.
+     */
+    protected abstract void onRefreshData(int reason, UpdateRequest request);
+
+    /**
+     * Returns how long, in milliseconds, cached data may be used to answer an update requested
+     * for the given reason. Return 0 to always refresh for that reason. Not consulted for
+     * {@link #UPDATE_REASON_MANUAL} and {@link #UPDATE_REASON_SETTINGS_CHANGED}, which always
+     * refresh. The default is {@link #DEFAULT_CACHE_TTL_MILLIS}.
+     */
+    protected long getCacheTtlMillis(int reason) {
+        return DEFAULT_CACHE_TTL_MILLIS;
+    }
+
+    /**
+     * Discards the cached data, so that the next update refreshes regardless of its reason.
+     * Call this after publishing data that shouldn't be served from the cache, such as an error
+     * state.
+     */
+    protected final void invalidateCache() {
+        synchronized (mCacheLock) {
+            mCacheLoaded = true;
+            mHasCachedData = false;
+            mCachedData = null;
+            getCachePreferences().edit().clear().apply();
+        }
+    }
+}
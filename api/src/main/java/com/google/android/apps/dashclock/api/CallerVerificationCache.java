@@ -0,0 +1,159 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.dashclock.api;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.util.SparseArray;
+
+/**
+ * A process-wide cache of whether calling UIDs belong to the official DashClock app, shared by
+ * all extension services in the process so that it survives the host unbinding and rebinding
+ * them. Each result is recorded along with the version and update time of the package it was
+ * checked against.
+ *
+ * <p>
+ * A single receiver, registered on first use, marks a UID's result as stale when one of its
+ * packages is added, replaced or changed, and drops it when the package is removed. A stale
+ * result is reused only if the package's version and update time haven't changed, which takes
+ * one {@link PackageManager#getPackageInfo} call without signatures.
+ */
+final class CallerVerificationCache {
+    // Guarded by CallerVerificationCache.class
+    private static final SparseArray<Entry> sEntries = new SparseArray<Entry>();
+    private static boolean sReceiverRegistered;
+
+    private CallerVerificationCache() {
+    }
+
+    /**
+     * Returns whether or not the app with the given UID is the official DashClock app.
+     */
+    static boolean isCallerVerified(Context context, int callingUid) {
+        PackageManager pm = context.getPackageManager();
+        Entry entry;
+        synchronized (CallerVerificationCache.class) {
+            ensureReceiverRegistered(context);
+            entry = sEntries.get(callingUid);
+        }
+
+        if (entry != null) {
+            if (!entry.stale) {
+                return entry.verified;
+            }
+
+            try {
+                PackageInfo pi = pm.getPackageInfo(entry.packageName, 0);
+                if (pi.versionCode == entry.versionCode
+                        && pi.lastUpdateTime == entry.lastUpdateTime) {
+                    synchronized (CallerVerificationCache.class) {
+                        if (sEntries.get(callingUid) == entry) {
+                            entry.stale = false;
+                        }
+                    }
+                    return entry.verified;
+                }
+            } catch (PackageManager.NameNotFoundException ignored) {
+                // Fall through to a full check
+            }
+        }
+
+        // Check the signature of the [first] package with the given UID against the
+        // known-good official DashClock app signature.
+        String[] packages = pm.getPackagesForUid(callingUid);
+        if (packages == null || packages.length == 0) {
+            return false;
+        }
+
+        PackageInfo pi;
+        try {
+            pi = pm.getPackageInfo(packages[0], PackageManager.GET_SIGNATURES);
+        } catch (PackageManager.NameNotFoundException e) {
+            // Don't cache this result; the package may be in the middle of being installed.
+            return false;
+        }
+
+        Entry newEntry = new Entry();
+        newEntry.packageName = pi.packageName;
+        newEntry.versionCode = pi.versionCode;
+        newEntry.lastUpdateTime = pi.lastUpdateTime;
+        newEntry.verified = pi.signatures != null
+                && pi.signatures.length == 1
+                && DashClockSignature.SIGNATURE.equals(pi.signatures[0]);
+        synchronized (CallerVerificationCache.class) {
+            sEntries.put(callingUid, newEntry);
+        }
+        return newEntry.verified;
+    }
+
+    private static void ensureReceiverRegistered(Context context) {
+        if (sReceiverRegistered) {
+            return;
+        }
+
+        IntentFilter packageChangeFilter = new IntentFilter();
+        packageChangeFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageChangeFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageChangeFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageChangeFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageChangeFilter.addDataScheme("package");
+        // Registered on the application context, for the lifetime of the process.
+        context.getApplicationContext().registerReceiver(
+                sPackageChangeReceiver, packageChangeFilter);
+        sReceiverRegistered = true;
+    }
+
+    private static final BroadcastReceiver sPackageChangeReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
+            boolean removed = Intent.ACTION_PACKAGE_REMOVED.equals(intent.getAction())
+                    && !intent.getBooleanExtra(Intent.EXTRA_REPLACING, false);
+            synchronized (CallerVerificationCache.class) {
+                if (uid == -1) {
+                    sEntries.clear();
+                    return;
+                }
+
+                Entry entry = sEntries.get(uid);
+                if (entry == null) {
+                    return;
+                }
+
+                if (removed) {
+                    // The UID may later be reused by a different app.
+                    sEntries.remove(uid);
+                } else {
+                    entry.stale = true;
+                }
+            }
+        }
+    };
+
+    private static class Entry {
+        String packageName;
+        int versionCode;
+        long lastUpdateTime;
+        boolean verified;
+        // Guarded by CallerVerificationCache.class
+        boolean stale;
+    }
+}
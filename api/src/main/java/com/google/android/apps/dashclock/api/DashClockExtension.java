@@ -16,13 +16,13 @@
 
 package com.google.android.apps.dashclock.api;
 
+import com.google.android.apps.dashclock.api.internal.ExtensionWorkerPool;
 import com.google.android.apps.dashclock.api.internal.IExtension;
 import com.google.android.apps.dashclock.api.internal.IExtensionHost;
 
 import android.app.Service;
 import android.content.ComponentName;
 import android.content.Intent;
-import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ServiceInfo;
 import android.os.Bundle;
@@ -52,6 +52,11 @@ import android.util.Log;
  * Subclasses can also override the {@link #onInitialize(boolean)} method to perform basic
  * initialization each time a connection to DashClock is established or re-established.
  *
+ * <p>
+ * Extensions whose updates complete asynchronously (for example, after a network request) can
+ * extend {@link AsyncDashClockExtension} instead, which adds cancellation of superseded updates
+ * and per-update deadlines.
+ *
  * <h3>Registering extensions</h3>
  * An extension is simply a service that the DashClock process binds to. Subclasses of this
  * base {@link DashClockExtension} class should thus be declared as <code>&lt;service&gt;</code>
@@ -74,6 +79,11 @@ import android.util.Log;
  * to the user for customizing the extension.</li>
  * <li><code>worldReadable</code> (optional): if present and true (default is false), will allow
  * other apps besides DashClock to read data for this extension.</li>
+ * <li><code>sharedWorkerPool</code> (optional): if present and true (default is false),
+ * {@link #onUpdateData(int)} runs on a small worker pool shared with other extensions in the same
+ * process that also set this, instead of on a dedicated thread per extension. Calls for a given
+ * extension still never overlap and run in order. Recommended for apps that ship several
+ * extensions.</li>
  * </ul>
  *
  * <h3>Example</h3>
@@ -209,10 +219,34 @@ public abstract class DashClockExtension extends Service {
 
     private boolean mInitialized = false;
     private boolean mIsWorldReadable = false;
+    private boolean mUseSharedWorkerPool = false;
     private IExtensionHost mHost;
 
     private volatile Looper mServiceLooper;
     private volatile Handler mServiceHandler;
+    private volatile ExtensionWorkerPool.SerialQueue mSharedWorkerQueue;
+
+    /**
+     * Sentinel for {@link #mPendingUpdateReason} indicating that no update is currently queued.
+     */
+    private static final int NO_PENDING_UPDATE = -1;
+
+    private final Object mPendingUpdateLock = new Object();
+    private int mPendingUpdateReason = NO_PENDING_UPDATE;
+
+    // Held across the comparison with the last published data and the IPC, so that publishes
+    // reach the host in the same order in which they're recorded below.
+    private final Object mPublishOrderLock = new Object();
+
+    // Guarded by mPublishLock. mLastPublishedData is a copy of the last published data, which is
+    // only meaningful if mHasLastPublishedData is set (the last published data may be null).
+    // mHostGeneration changes whenever the host connection is (re)initialized.
+    private final Object mPublishLock = new Object();
+    private boolean mHasLastPublishedData;
+    private ExtensionData mLastPublishedData;
+    private int mHostGeneration;
+    private int mPublishCount;
+    private int mSuppressedPublishCount;
 
     protected DashClockExtension() {
         super();
@@ -223,18 +257,41 @@ public abstract class DashClockExtension extends Service {
         super.onCreate();
         loadMetaData();
 
-        HandlerThread thread = new HandlerThread(
-                "DashClockExtension:" + getClass().getSimpleName());
-        thread.start();
+        if (mUseSharedWorkerPool) {
+            mSharedWorkerQueue = ExtensionWorkerPool.newSerialQueue();
+        } else {
+            HandlerThread thread = new HandlerThread(
+                    "DashClockExtension:" + getClass().getSimpleName());
+            thread.start();
 
-        mServiceLooper = thread.getLooper();
-        mServiceHandler = new Handler(mServiceLooper);
+            mServiceLooper = thread.getLooper();
+            mServiceHandler = new Handler(mServiceLooper);
+        }
     }
 
     @Override
     public void onDestroy() {
-        mServiceHandler.removeCallbacksAndMessages(null); // remove all callbacks
-        mServiceLooper.quit();
+        if (mSharedWorkerQueue != null) {
+            mSharedWorkerQueue.clear();
+        } else {
+            mServiceHandler.removeCallbacksAndMessages(null); // remove all callbacks
+            mServiceLooper.quit();
+        }
+        synchronized (mPendingUpdateLock) {
+            mPendingUpdateReason = NO_PENDING_UPDATE;
+        }
+    }
+
+    /**
+     * Runs the given work on this extension's worker thread, i.e. the thread (or shared pool
+     * queue) that {@link #onUpdateData(int)} is called on.
+     */
+    void runOnWorker(Runnable runnable) {
+        if (mSharedWorkerQueue != null) {
+            mSharedWorkerQueue.execute(runnable);
+        } else {
+            mServiceHandler.post(runnable);
+        }
     }
 
     private void loadMetaData() {
@@ -248,6 +305,7 @@ public abstract class DashClockExtension extends Service {
                 int protocolVersion = metaData.getInt("protocolVersion");
                 mIsWorldReadable = protocolVersion >= PROTOCOL_VERSION_WORLD_READABILITY
                         && metaData.getBoolean("worldReadable");
+                mUseSharedWorkerPool = metaData.getBoolean("sharedWorkerPool");
             }
         } catch (PackageManager.NameNotFoundException e) {
             Log.w(TAG, "Could not load metadata (e.g. world readable) for extension.");
@@ -264,23 +322,8 @@ public abstract class DashClockExtension extends Service {
         public void onInitialize(IExtensionHost host, boolean isReconnect)
                 throws RemoteException {
             if (!mIsWorldReadable) {
-                // If not world readable, check the signature of the [first] package with the given
-                // UID against the known-good official DashClock app signature.
-                boolean verified = false;
-                PackageManager pm = getPackageManager();
-                String[] packages = pm.getPackagesForUid(getCallingUid());
-                if (packages != null && packages.length > 0) {
-                    try {
-                        PackageInfo pi = pm.getPackageInfo(packages[0],
-                                PackageManager.GET_SIGNATURES);
-                        if (pi.signatures != null
-                                && pi.signatures.length == 1
-                                && DashClockSignature.SIGNATURE.equals(pi.signatures[0])) {
-                            verified = true;
-                        }
-                    } catch (PackageManager.NameNotFoundException ignored) {
-                    }
-                }
+                boolean verified = CallerVerificationCache.isCallerVerified(
+                        DashClockExtension.this, getCallingUid());
 
                 if (!verified) {
                     Log.e(TAG, "Caller is not official DashClock app and this "
@@ -292,6 +335,14 @@ public abstract class DashClockExtension extends Service {
 
             mHost = host;
 
+            // The host may not have (or may have lost) the last data published over a previous
+            // connection, so the next publish must always go through.
+            synchronized (mPublishLock) {
+                mHasLastPublishedData = false;
+                mLastPublishedData = null;
+                ++mHostGeneration;
+            }
+
             if (!mInitialized) {
                 DashClockExtension.this.onInitialize(isReconnect);
                 mInitialized = true;
@@ -304,16 +355,65 @@ public abstract class DashClockExtension extends Service {
                 return;
             }
 
-            // Do this in a separate thread
-            mServiceHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    DashClockExtension.this.onUpdateData(reason);
+            // Keep at most one update queued; requests arriving before it runs are merged into
+            // it, keeping the most important reason.
+            synchronized (mPendingUpdateLock) {
+                if (mPendingUpdateReason != NO_PENDING_UPDATE) {
+                    if (getUpdateReasonPriority(reason)
+                            > getUpdateReasonPriority(mPendingUpdateReason)) {
+                        mPendingUpdateReason = reason;
+                    }
+                    return;
                 }
-            });
+
+                mPendingUpdateReason = reason;
+            }
+
+            // Do this in a separate thread
+            runOnWorker(mPendingUpdateRunnable);
+        }
+    };
+
+    private final Runnable mPendingUpdateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            int reason;
+            synchronized (mPendingUpdateLock) {
+                reason = mPendingUpdateReason;
+                mPendingUpdateReason = NO_PENDING_UPDATE;
+            }
+
+            if (reason != NO_PENDING_UPDATE) {
+                DashClockExtension.this.onUpdateData(reason);
+            }
         }
     };
 
+    /**
+     * Returns the relative importance of the given update reason, used to decide which reason
+     * to report when several update requests are merged into a single
+     * {@link #onUpdateData(int)} call. Explicit user actions win over content changes, which
+     * in turn win over routine refreshes.
+     */
+    private static int getUpdateReasonPriority(int reason) {
+        switch (reason) {
+            case UPDATE_REASON_MANUAL:
+                return 6;
+            case UPDATE_REASON_SETTINGS_CHANGED:
+                return 5;
+            case UPDATE_REASON_INITIAL:
+                return 4;
+            case UPDATE_REASON_CONTENT_CHANGED:
+                return 3;
+            case UPDATE_REASON_SCREEN_ON:
+                return 2;
+            case UPDATE_REASON_PERIODIC:
+                return 1;
+            default:
+                return 0;
+        }
+    }
+
     /**
      * Called when a connection with the main DashClock app has been established or re-established
      * after a previous one was lost. In this latter case, the parameter <code>isReconnect</code>
@@ -334,6 +434,12 @@ public abstract class DashClockExtension extends Service {
      * {@link #publishUpdate(ExtensionData)} with <code>null</code> data. This method is called
      * on a background thread.
      *
+     * <p>
+     * Update requests that arrive while a previous request is still queued are merged into it,
+     * so this method may be called fewer times than updates were requested. In that case
+     * <code>reason</code> is the most important of the merged reasons (for example,
+     * {@link #UPDATE_REASON_MANUAL} wins over {@link #UPDATE_REASON_PERIODIC}).
+     *
      * @param reason The reason for the update. See {@link #UPDATE_REASON_PERIODIC} and related
      *               constants for more details.
      */
@@ -346,17 +452,92 @@ public abstract class DashClockExtension extends Service {
      * {@link #onInitialize(boolean)} has been called. If you only call this from within
      * {@link #onUpdateData(int)} this is already ensured.
      *
+     * <p>
+     * If the data is identical to the data most recently published over the current connection,
+     * the call is skipped, since DashClock already has that data. See
+     * {@link #getSuppressedPublishCount()}.
+     *
      * @param data The data to show, or <code>null</code> if existing data should be cleared (hiding
      *             the extension from view).
      */
     protected final void publishUpdate(ExtensionData data) {
-        try {
-            mHost.publishUpdate(data);
-        } catch (RemoteException e) {
-            Log.e(TAG, "Couldn't publish updated extension data.", e);
+        // Publishes are serialized by mPublishOrderLock, so the data recorded as last published
+        // is always what the host received last. mPublishLock is only held briefly, so reading
+        // the counters never waits on a slow host.
+        ExtensionData publishedData = copyOf(data);
+        synchronized (mPublishOrderLock) {
+            int hostGeneration;
+            synchronized (mPublishLock) {
+                if (mHasLastPublishedData
+                        && ExtensionData.equals(mLastPublishedData, publishedData)) {
+                    ++mSuppressedPublishCount;
+                    return;
+                }
+                hostGeneration = mHostGeneration;
+            }
+
+            try {
+                mHost.publishUpdate(data);
+                synchronized (mPublishLock) {
+                    ++mPublishCount;
+                    // If the host reconnected during the IPC, it may not have this data.
+                    if (hostGeneration == mHostGeneration) {
+                        mHasLastPublishedData = true;
+                        mLastPublishedData = publishedData;
+                    }
+                }
+            } catch (RemoteException e) {
+                synchronized (mPublishLock) {
+                    // Don't suppress a retry of data that the host may never have received.
+                    mHasLastPublishedData = false;
+                    mLastPublishedData = null;
+                }
+                Log.e(TAG, "Couldn't publish updated extension data.", e);
+            }
         }
     }
 
+    /**
+     * Returns the number of {@link #publishUpdate(ExtensionData)} calls that were delivered to
+     * the main DashClock app since this extension was created.
+     */
+    protected final int getPublishCount() {
+        synchronized (mPublishLock) {
+            return mPublishCount;
+        }
+    }
+
+    /**
+     * Returns the number of {@link #publishUpdate(ExtensionData)} calls that were skipped since
+     * this extension was created because the data was identical to the last published data.
+     */
+    protected final int getSuppressedPublishCount() {
+        synchronized (mPublishLock) {
+            return mSuppressedPublishCount;
+        }
+    }
+
+    /**
+     * Returns a copy of the given data, so that later changes made by the extension to the
+     * published object don't affect the comparison in {@link #publishUpdate(ExtensionData)}.
+     */
+    private static ExtensionData copyOf(ExtensionData data) {
+        if (data == null) {
+            return null;
+        }
+
+        Intent clickIntent = data.clickIntent();
+        return new ExtensionData()
+                .visible(data.visible())
+                .icon(data.icon())
+                .iconUri(data.iconUri())
+                .status(data.status())
+                .expandedTitle(data.expandedTitle())
+                .expandedBody(data.expandedBody())
+                .clickIntent((clickIntent != null) ? new Intent(clickIntent) : null)
+                .contentDescription(data.contentDescription());
+    }
+
     /**
      * Requests that the main DashClock app watch the given content URIs (using
      * {@link android.content.ContentResolver#registerContentObserver(android.net.Uri, boolean,
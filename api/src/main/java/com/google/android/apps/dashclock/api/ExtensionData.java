@@ -22,10 +22,14 @@ import android.os.Bundle;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.text.TextUtils;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
 import java.net.URISyntaxException;
 
 /**
@@ -72,7 +76,7 @@ public class ExtensionData implements Parcelable {
      * old versions of the protocol (and thus old versions of this class), we need a versioning
      * system for the parcels sent between the core app and its extensions.
      */
-    public static final int PARCELABLE_VERSION = 2;
+    public static final int PARCELABLE_VERSION = 3;
 
     private static final String KEY_VISIBLE = "visible";
     private static final String KEY_ICON = "icon";
@@ -310,6 +314,90 @@ public class ExtensionData implements Parcelable {
         this.mContentDescription = data.optString(KEY_CONTENT_DESCRIPTION);
     }
 
+    /**
+     * Serializes the contents of this object to JSON, streaming it to the given writer without
+     * building an intermediate {@link JSONObject}. The output is compatible with
+     * {@link #deserialize(JSONObject)} and {@link #deserialize(JsonReader)}.
+     */
+    public void serialize(JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writer.name(KEY_VISIBLE).value(mVisible);
+        writer.name(KEY_ICON).value(mIcon);
+        // Like JSONObject.put, omit null values entirely.
+        writeOptionalString(writer, KEY_ICON_URI, (mIconUri == null) ? null : mIconUri.toString());
+        writeOptionalString(writer, KEY_STATUS, mStatus);
+        writeOptionalString(writer, KEY_EXPANDED_TITLE, mExpandedTitle);
+        writeOptionalString(writer, KEY_EXPANDED_BODY, mExpandedBody);
+        writeOptionalString(writer, KEY_CLICK_INTENT,
+                (mClickIntent == null) ? null : mClickIntent.toUri(0));
+        writeOptionalString(writer, KEY_CONTENT_DESCRIPTION, mContentDescription);
+        writer.endObject();
+    }
+
+    private static void writeOptionalString(JsonWriter writer, String name, String value)
+            throws IOException {
+        if (value != null) {
+            writer.name(name).value(value);
+        }
+    }
+
+    /**
+     * Deserializes the JSON representation of extension data from the given reader (as written by
+     * {@link #serialize()} or {@link #serialize(JsonWriter)}), populating this object. Missing or
+     * empty values are treated as null.
+     */
+    public void deserialize(JsonReader reader) throws IOException {
+        String iconUriString = null;
+        String clickIntentString = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+            } else if (KEY_VISIBLE.equals(name) && reader.peek() == JsonToken.BOOLEAN) {
+                this.mVisible = reader.nextBoolean();
+            } else if (KEY_ICON.equals(name) && reader.peek() == JsonToken.NUMBER) {
+                // Read the number as a string so that malformed values (e.g. out of range or
+                // fractional) are skipped rather than throwing NumberFormatException.
+                String icon = reader.nextString();
+                try {
+                    this.mIcon = Integer.parseInt(icon);
+                } catch (NumberFormatException ignored) {
+                }
+            } else if (reader.peek() != JsonToken.STRING) {
+                reader.skipValue();
+            } else if (KEY_ICON_URI.equals(name)) {
+                iconUriString = reader.nextString();
+            } else if (KEY_STATUS.equals(name)) {
+                this.mStatus = emptyToNull(reader.nextString());
+            } else if (KEY_EXPANDED_TITLE.equals(name)) {
+                this.mExpandedTitle = emptyToNull(reader.nextString());
+            } else if (KEY_EXPANDED_BODY.equals(name)) {
+                this.mExpandedBody = emptyToNull(reader.nextString());
+            } else if (KEY_CLICK_INTENT.equals(name)) {
+                clickIntentString = reader.nextString();
+            } else if (KEY_CONTENT_DESCRIPTION.equals(name)) {
+                this.mContentDescription = emptyToNull(reader.nextString());
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        this.mIconUri = TextUtils.isEmpty(iconUriString) ? null : Uri.parse(iconUriString);
+        this.mClickIntent = null;
+        if (!TextUtils.isEmpty(clickIntentString)) {
+            try {
+                this.mClickIntent = Intent.parseUri(clickIntentString, 0);
+            } catch (URISyntaxException ignored) {
+            }
+        }
+    }
+
+    private static String emptyToNull(String s) {
+        return TextUtils.isEmpty(s) ? null : s;
+    }
+
     /**
      * Serializes the contents of this object to a {@link Bundle}.
      */
@@ -363,6 +451,7 @@ public class ExtensionData implements Parcelable {
         int parcelableVersion = in.readInt();
         int parcelableSize = in.readInt();
         int startPosition = in.dataPosition();
+        String clickIntentUri = null;
         if (parcelableVersion >= 1) {
             this.mVisible = (in.readInt() != 0);
             this.mIcon = in.readInt();
@@ -378,10 +467,7 @@ public class ExtensionData implements Parcelable {
             if (TextUtils.isEmpty(this.mExpandedBody)) {
                 this.mExpandedBody = null;
             }
-            try {
-                this.mClickIntent = Intent.parseUri(in.readString(), 0);
-            } catch (URISyntaxException ignored) {
-            }
+            clickIntentUri = in.readString();
         }
         if (parcelableVersion >= 2) {
             this.mContentDescription = in.readString();
@@ -391,6 +477,27 @@ public class ExtensionData implements Parcelable {
             String iconUriString = in.readString();
             this.mIconUri = TextUtils.isEmpty(iconUriString) ? null : Uri.parse(iconUriString);
         }
+        boolean hasNativeClickIntent = false;
+        if (parcelableVersion >= 3) {
+            // The click intent is written natively, avoiding the (lossy and slow) URI round trip.
+            // The URI form read above is only used if the native intent can't be read.
+            if (in.readInt() != 0) {
+                try {
+                    this.mClickIntent = Intent.CREATOR.createFromParcel(in);
+                    hasNativeClickIntent = true;
+                } catch (RuntimeException ignored) {
+                    this.mClickIntent = null;
+                }
+            } else {
+                hasNativeClickIntent = true;
+            }
+        }
+        if (!hasNativeClickIntent && !TextUtils.isEmpty(clickIntentUri)) {
+            try {
+                this.mClickIntent = Intent.parseUri(clickIntentUri, 0);
+            } catch (URISyntaxException ignored) {
+            }
+        }
         // Only advance the data position if the parcelable version is >= 2. In v1 of the
         // parcelable, there was an awful bug where the parcelableSize was complete nonsense.
         if (parcelableVersion >= 2) {
@@ -402,7 +509,8 @@ public class ExtensionData implements Parcelable {
     public void writeToParcel(Parcel parcel, int i) {
         /**
          * NOTE: When adding fields in the process of updating this API, make sure to bump
-         * {@link #PARCELABLE_VERSION}.
+         * {@link #PARCELABLE_VERSION}. Older readers read fields in order and then skip to the
+         * end using the size, so new fields must always be appended.
          */
         parcel.writeInt(PARCELABLE_VERSION);
         // Inject a placeholder that will store the parcel size from this point on
@@ -410,16 +518,26 @@ public class ExtensionData implements Parcelable {
         int sizePosition = parcel.dataPosition();
         parcel.writeInt(0);
         int startPosition = parcel.dataPosition();
-        // Version 1 below
+        // Version 1 below. Empty strings are written as nulls, which all readers treat the same
+        // as empty strings but take up less space. The exception is the click intent URI, which
+        // v1 and v2 readers can't handle as null. v3 readers skip it in favor of the native
+        // click intent written below.
         parcel.writeInt(mVisible ? 1 : 0);
         parcel.writeInt(mIcon);
-        parcel.writeString(TextUtils.isEmpty(mStatus) ? "" : mStatus);
-        parcel.writeString(TextUtils.isEmpty(mExpandedTitle) ? "" : mExpandedTitle);
-        parcel.writeString(TextUtils.isEmpty(mExpandedBody) ? "" : mExpandedBody);
+        parcel.writeString(TextUtils.isEmpty(mStatus) ? null : mStatus);
+        parcel.writeString(TextUtils.isEmpty(mExpandedTitle) ? null : mExpandedTitle);
+        parcel.writeString(TextUtils.isEmpty(mExpandedBody) ? null : mExpandedBody);
         parcel.writeString((mClickIntent == null) ? "" : mClickIntent.toUri(0));
         // Version 2 below
-        parcel.writeString(TextUtils.isEmpty(mContentDescription) ? "" : mContentDescription);
-        parcel.writeString(mIconUri == null ? "" : mIconUri.toString());
+        parcel.writeString(TextUtils.isEmpty(mContentDescription) ? null : mContentDescription);
+        parcel.writeString(mIconUri == null ? null : mIconUri.toString());
+        // Version 3 below
+        if (mClickIntent != null) {
+            parcel.writeInt(1);
+            mClickIntent.writeToParcel(parcel, i);
+        } else {
+            parcel.writeInt(0);
+        }
         // Go back and write the size
         int parcelableSize = parcel.dataPosition() - startPosition;
         parcel.setDataPosition(sizePosition);
@@ -447,7 +565,7 @@ public class ExtensionData implements Parcelable {
                     && TextUtils.equals(other.mStatus, mStatus)
                     && TextUtils.equals(other.mExpandedTitle, mExpandedTitle)
                     && TextUtils.equals(other.mExpandedBody, mExpandedBody)
-                    && objectEquals(other.mClickIntent, mClickIntent)
+                    && intentEquals(other.mClickIntent, mClickIntent)
                     && TextUtils.equals(other.mContentDescription, mContentDescription);
 
         } catch (ClassCastException e) {
@@ -463,6 +581,38 @@ public class ExtensionData implements Parcelable {
         }
     }
 
+    /**
+     * Compares click intents by value, since {@link Intent} doesn't override equals. Extras are
+     * compared with {@link Object#equals(Object)}, so intents with array or parcelable extras may
+     * be reported as different even if they aren't.
+     */
+    private static boolean intentEquals(Intent x, Intent y) {
+        if (x == null || y == null) {
+            return x == y;
+        }
+
+        if (!x.filterEquals(y) || x.getFlags() != y.getFlags()) {
+            return false;
+        }
+
+        Bundle xExtras = x.getExtras();
+        Bundle yExtras = y.getExtras();
+        if (xExtras == null || yExtras == null) {
+            return xExtras == yExtras;
+        }
+
+        if (xExtras.size() != yExtras.size()) {
+            return false;
+        }
+
+        for (String key : xExtras.keySet()) {
+            if (!yExtras.containsKey(key) || !objectEquals(xExtras.get(key), yExtras.get(key))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Returns true if the two provided data objects are equal (or both null).
      */
@@ -474,18 +624,57 @@ public class ExtensionData implements Parcelable {
         }
     }
 
+    /**
+     * Returns a short summary of this object's fields, for debugging. Long text is summarized by
+     * length and the click intent by its action and component, so this is cheap to call.
+     */
     @Override
     public String toString() {
-        try {
-            return serialize().toString();
-        } catch (JSONException e) {
-            return super.toString();
+        StringBuilder sb = new StringBuilder(128);
+        sb.append("ExtensionData{visible=").append(mVisible);
+        if (mIcon != 0) {
+            sb.append(", icon=0x").append(Integer.toHexString(mIcon));
+        }
+        if (mIconUri != null) {
+            sb.append(", iconUri=").append(mIconUri);
+        }
+        if (mStatus != null) {
+            sb.append(", status=\"").append(mStatus).append('"');
+        }
+        if (mExpandedTitle != null) {
+            sb.append(", expandedTitle=\"").append(mExpandedTitle).append('"');
+        }
+        if (mExpandedBody != null) {
+            sb.append(", expandedBody=<").append(mExpandedBody.length()).append(" chars>");
+        }
+        if (mClickIntent != null) {
+            sb.append(", clickIntent={");
+            if (mClickIntent.getAction() != null) {
+                sb.append(mClickIntent.getAction());
+            }
+            if (mClickIntent.getComponent() != null) {
+                sb.append(' ').append(mClickIntent.getComponent().flattenToShortString());
+            }
+            sb.append('}');
+        }
+        if (mContentDescription != null) {
+            sb.append(", contentDescription=<").append(mContentDescription.length())
+                    .append(" chars>");
         }
+        return sb.append('}').toString();
     }
 
     @Override
     public int hashCode() {
-        throw new UnsupportedOperationException();
+        int result = mVisible ? 1 : 0;
+        result = 31 * result + mIcon;
+        result = 31 * result + (mIconUri != null ? mIconUri.hashCode() : 0);
+        result = 31 * result + (mStatus != null ? mStatus.hashCode() : 0);
+        result = 31 * result + (mExpandedTitle != null ? mExpandedTitle.hashCode() : 0);
+        result = 31 * result + (mExpandedBody != null ? mExpandedBody.hashCode() : 0);
+        result = 31 * result + (mClickIntent != null ? mClickIntent.filterHashCode() : 0);
+        result = 31 * result + (mContentDescription != null ? mContentDescription.hashCode() : 0);
+        return result;
     }
 
     /**
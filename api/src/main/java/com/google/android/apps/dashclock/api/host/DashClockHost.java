@@ -16,33 +16,37 @@
 
 package com.google.android.apps.dashclock.api.host;
 
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.ServiceConnection;
+import android.content.IntentFilter;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PermissionInfo;
 import android.content.pm.ServiceInfo;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Handler;
-import android.os.IBinder;
+import android.os.Looper;
 import android.os.Message;
-import android.os.RemoteException;
+import android.util.AtomicFile;
 
 import com.google.android.apps.dashclock.api.DashClockExtension;
 import com.google.android.apps.dashclock.api.DashClockSignature;
 import com.google.android.apps.dashclock.api.ExtensionData;
 import com.google.android.apps.dashclock.api.internal.IDataConsumerHost;
-import com.google.android.apps.dashclock.api.internal.IDataConsumerHostCallback;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
 
 import static android.content.pm.PackageManager.NameNotFoundException;
 
@@ -54,9 +58,19 @@ import static android.content.pm.PackageManager.NameNotFoundException;
  * for extension updates, and MUST call {@link #destroy()} when the instance is not
  * used anymore.
  * <p>
+ * All instances in a process share a single connection to the multiplexer service, so creating
+ * several hosts (for example, one per widget or screen) doesn't multiply binds or data deliveries.
+ * <p>
+ * Hosts created with {@link #DashClockHost(Context, String)} keep a snapshot of the available
+ * extensions and their data on disk, and serve it right away when created, before the connection
+ * to the multiplexer service is established. See {@link #isExtensionDataStale(ComponentName)}.
+ * <p>
  * Subclasses should implement {@link #onExtensionDataChanged(android.content.ComponentName)}
  * in order to receive updates for the registered extensions passed to
  * {@link #listenTo(java.util.Set)}.<br/>
+ * Alternatively, hosts can {@link #subscribe(Set, java.util.concurrent.Executor,
+ * ExtensionDataSubscription.Listener) subscribe} to updates on an executor of their choice, for
+ * example to process them off the main thread.<br/>
  * <p>
  * Subclasses should implement {@link #onAvailableExtensionsChanged()} to get notifications
  * of additions or removals of DashClock extensions installed on the device.<br/>
@@ -97,7 +111,7 @@ public abstract class DashClockHost {
      * Exception thrown if the host multiplexer service is not available.
      */
     public static class NoMultiplexerAvailableException extends RuntimeException {
-        private NoMultiplexerAvailableException(String message) {
+        NoMultiplexerAvailableException(String message) {
             super(message);
         }
     }
@@ -109,54 +123,145 @@ public abstract class DashClockHost {
         return getMultiplexerService(context) != null;
     }
 
+    /**
+     * Callback for {@link #getOtherAppsWithReadDataExtensionsPermission(Context,
+     * OtherAppsCallback)}.
+     */
+    public interface OtherAppsCallback {
+        /**
+         * Called on the main thread with the list of packages other than DashClock that define
+         * the {@link DashClockExtension#PERMISSION_READ_EXTENSION_DATA} permission.
+         */
+        void onOtherAppsWithReadDataExtensionsPermission(List<String> packages);
+    }
+
     /**
      * Return a list of packages that implement the {@link
-     * DashClockExtension#PERMISSION_READ_EXTENSION_DATA} permission and aren't DashClock
+     * DashClockExtension#PERMISSION_READ_EXTENSION_DATA} permission and aren't DashClock. The
+     * result is cached until a package is installed, updated or removed.
+     *
+     * @see #getOtherAppsWithReadDataExtensionsPermission(Context, OtherAppsCallback)
      */
     public static List<String> getOtherAppsWithReadDataExtensionsPermission(Context context) {
-        List<String> installedApps = new ArrayList<>();
         if(Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
             // There is no problem with the PERMISSION_READ_EXTENSION_DATA if
             // the api supports multiple apps defining the same permission (< Lollipop)
-            return installedApps;
+            return new ArrayList<>();
         }
-        PackageManager pm = context.getPackageManager();
-        List<ApplicationInfo> apps = pm.getInstalledApplications(PackageManager.GET_META_DATA);
-        for (ApplicationInfo ai : apps) {
-            try {
-                PackageInfo pi = pm.getPackageInfo(ai.packageName, PackageManager.GET_PERMISSIONS);
-                PermissionInfo[] perms =  pi.permissions;
-                if (perms != null) {
-                    for (PermissionInfo perm : perms) {
-                        if (perm.name.equals(DashClockExtension.PERMISSION_READ_EXTENSION_DATA)) {
-                            if (!ai.packageName.equals(MULTIPLEXER_HOST_SERVICE.getPackageName())) {
-                                installedApps.add(ai.packageName);
-                                break;
-                            }
-                        }
-                    }
+
+        List<String> otherApps = sOtherAppsWithReadDataExtensionsPermission;
+        if (otherApps == null) {
+            registerPackageChangeReceiver(context);
+            int generation = sPackageChangeGeneration;
+            otherApps = findOtherAppsWithReadDataExtensionsPermission(context);
+            synchronized (DashClockHost.class) {
+                // Don't cache a result that a concurrent package change may have made stale
+                if (generation == sPackageChangeGeneration) {
+                    sOtherAppsWithReadDataExtensionsPermission = otherApps;
                 }
+            }
+        }
+        return new ArrayList<>(otherApps);
+    }
 
-            } catch (NameNotFoundException ex) {
-                // Ignore
+    /**
+     * Asynchronous version of {@link #getOtherAppsWithReadDataExtensionsPermission(Context)},
+     * which does the lookup on a background thread (unless the result is already cached) and
+     * delivers it on the main thread.
+     */
+    public static void getOtherAppsWithReadDataExtensionsPermission(final Context context,
+            final OtherAppsCallback callback) {
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<String> otherApps =
+                        getOtherAppsWithReadDataExtensionsPermission(context);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onOtherAppsWithReadDataExtensionsPermission(otherApps);
+                    }
+                });
             }
+        });
+    }
+
+    private static List<String> findOtherAppsWithReadDataExtensionsPermission(Context context) {
+        // As of Lollipop, a permission can only be defined by one package (installing another
+        // package that defines it fails), so ask for the owner directly instead of scanning
+        // every installed package.
+        List<String> otherApps = new ArrayList<>();
+        try {
+            PermissionInfo perm = context.getPackageManager().getPermissionInfo(
+                    DashClockExtension.PERMISSION_READ_EXTENSION_DATA, 0);
+            if (perm.packageName != null
+                    && !perm.packageName.equals(MULTIPLEXER_HOST_SERVICE.getPackageName())) {
+                otherApps.add(perm.packageName);
+            }
+        } catch (NameNotFoundException e) {
+            // No package defines the permission
+        }
+        return otherApps;
+    }
+
+    private static void registerPackageChangeReceiver(Context context) {
+        synchronized (DashClockHost.class) {
+            if (sPackageChangeReceiverRegistered) {
+                return;
+            }
+            sPackageChangeReceiverRegistered = true;
+        }
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        context.getApplicationContext().registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                invalidateOtherAppsWithReadDataExtensionsPermission();
+            }
+        }, filter);
+    }
+
+    private static void invalidateOtherAppsWithReadDataExtensionsPermission() {
+        synchronized (DashClockHost.class) {
+            ++sPackageChangeGeneration;
+            sOtherAppsWithReadDataExtensionsPermission = null;
         }
-        return installedApps;
     }
 
+    private static volatile List<String> sOtherAppsWithReadDataExtensionsPermission;
+    private static volatile int sPackageChangeGeneration;
+    private static boolean sPackageChangeReceiverRegistered;
+
     protected DashClockHost(Context context) throws SecurityException {
+        this(context, null);
+    }
+
+    /**
+     * Creates a host that persists the last known available extensions and extension data under
+     * the given name, and serves them immediately (marked as stale) until live data arrives from
+     * the multiplexer service. The snapshot is read synchronously, on the calling thread.
+     * Subclasses are notified of the snapshot contents through
+     * {@link #onAvailableExtensionsChanged()} and {@link #onExtensionDataChanged(ComponentName)}
+     * as usual.
+     *
+     * @param snapshotName A name identifying this host's snapshot, unique within the app, or
+     *                     {@code null} to not use a snapshot.
+     */
+    protected DashClockHost(Context context, String snapshotName) throws SecurityException {
         mContext = context;
         mHandler = new Handler(mHandlerCallback);
         mDataCache = new HashMap<>();
         mAvailableExtensions = new ArrayList<>();
-        try {
-            if (!connect()) {
-                mHandler.sendEmptyMessageDelayed(MSG_RECONNECT, AUTO_RECONNECT_DELAY);
-            }
-        } catch (NoMultiplexerAvailableException | SecurityException ex) {
-            // Notify the implementation that the multiplexer isn't available
-            mHandler.obtainMessage(MSG_NOTIFY_MUX_NOT_AVAILABLE).sendToTarget();
+        if (snapshotName != null) {
+            mSnapshotFile = HostSnapshot.getFile(context, snapshotName);
+            restoreSnapshot();
         }
+        mConnection = SharedHostConnection.acquire(context, mClient);
     }
 
     /**
@@ -167,15 +272,19 @@ public abstract class DashClockHost {
      */
     public void destroy() {
         mDestroyed = true;
-        mHandler.removeCallbacksAndMessages(null);
-        if (mService != null) {
-            try {
-                mService.listenTo(null, mCallback);
-                mContext.unbindService(mConnection);
-            } catch (RemoteException e) {
-                // ignored
-            }
+        List<ExtensionDataSubscription> subscriptions;
+        synchronized (mDataCache) {
+            subscriptions = new ArrayList<>(mSubscriptions);
+            mSubscriptions.clear();
         }
+        for (ExtensionDataSubscription subscription : subscriptions) {
+            subscription.cancelInternal();
+        }
+        if (mHandler.hasMessages(MSG_SAVE_SNAPSHOT)) {
+            saveSnapshot();
+        }
+        mHandler.removeCallbacksAndMessages(null);
+        mConnection.release(mClient);
     }
 
     /**
@@ -235,6 +344,25 @@ public abstract class DashClockHost {
         }
     }
 
+    /**
+     * Returns whether the data returned by {@link #getExtensionData(ComponentName)} for the given
+     * extension was restored from this host's snapshot and hasn't been refreshed from the
+     * multiplexer service yet.
+     */
+    public boolean isExtensionDataStale(ComponentName extension) {
+        synchronized (mDataCache) {
+            return mStaleExtensions.contains(extension);
+        }
+    }
+
+    /**
+     * Returns whether the list returned by {@link #getAvailableExtensions(boolean)} was restored
+     * from this host's snapshot and hasn't been refreshed from the multiplexer service yet.
+     */
+    public boolean areAvailableExtensionsStale() {
+        return mAvailableExtensionsStale;
+    }
+
     /**
      * Update list of extensions to get data updates for.
      *
@@ -242,15 +370,76 @@ public abstract class DashClockHost {
      * @see #onExtensionDataChanged
      */
     public void listenTo(Set<ComponentName> extensions) {
-        mListenedExtensions = extensions;
-        List<ComponentName> extensionList =
-                extensions == null ? null : new ArrayList<>(extensions);
-        try {
-            if (mService != null) {
-                mService.listenTo(extensionList, mCallback);
+        mListenedExtensions = (extensions == null)
+                ? Collections.<ComponentName>emptySet()
+                : Collections.unmodifiableSet(new HashSet<>(extensions));
+        updateListenedExtensions();
+    }
+
+    /**
+     * Subscribe to data updates for a set of extensions, independently of
+     * {@link #listenTo(Set)} and {@link #onExtensionDataChanged(ComponentName)}. The listener is
+     * called on the given executor, first with the currently known data for each extension and
+     * then whenever it changes. Updates are conflated per extension, so a slow listener only
+     * sees the latest data; see {@link ExtensionDataSubscription}.
+     *
+     * <p>
+     * This lets hosts process updates off their main thread without an unbounded queue of
+     * messages building up. Subscriptions stay active until they're cancelled or the host is
+     * destroyed.
+     *
+     * @param extensions The extensions to receive updates for.
+     * @param executor   The executor to call the listener on.
+     * @param listener   The listener to call.
+     * @return The new subscription.
+     */
+    public ExtensionDataSubscription subscribe(Set<ComponentName> extensions, Executor executor,
+            ExtensionDataSubscription.Listener listener) {
+        if (mDestroyed) {
+            throw new IllegalStateException("Can't subscribe to a destroyed host");
+        }
+
+        ExtensionDataSubscription subscription =
+                new ExtensionDataSubscription(this, extensions, executor, listener);
+        synchronized (mDataCache) {
+            mSubscriptions.add(subscription);
+            for (ComponentName cn : subscription.getExtensions()) {
+                if (mDataCache.containsKey(cn)) {
+                    subscription.offer(cn, mDataCache.get(cn));
+                }
             }
-        } catch (RemoteException e) {
-            // Ignore
+        }
+        subscription.scheduleDrain();
+        updateListenedExtensions();
+        return subscription;
+    }
+
+    void removeSubscription(ExtensionDataSubscription subscription) {
+        synchronized (mDataCache) {
+            if (!mSubscriptions.remove(subscription)) {
+                return;
+            }
+        }
+        updateListenedExtensions();
+    }
+
+    /**
+     * Listens to the extensions passed to {@link #listenTo(Set)} and to those of all active
+     * subscriptions.
+     */
+    private void updateListenedExtensions() {
+        synchronized (mListenLock) {
+            if (mDestroyed) {
+                return;
+            }
+
+            Set<ComponentName> extensions = new HashSet<>(mListenedExtensions);
+            synchronized (mDataCache) {
+                for (ExtensionDataSubscription subscription : mSubscriptions) {
+                    extensions.addAll(subscription.getExtensions());
+                }
+            }
+            mConnection.listenTo(mClient, extensions);
         }
     }
 
@@ -263,15 +452,8 @@ public abstract class DashClockHost {
      * @return Whether the operation was successful.
      */
     public boolean startSettingsActivityForExtension(ExtensionListing extension) {
-        if (mService != null && extension.settingsActivity() != null) {
-            try {
-                mService.showExtensionSettings(extension.componentName(), mCallback);
-                return true;
-            } catch (RemoteException e) {
-                // Ignore
-            }
-        }
-        return false;
+        return extension.settingsActivity() != null
+                && mConnection.showExtensionSettings(extension.componentName());
     }
 
     /**
@@ -282,15 +464,7 @@ public abstract class DashClockHost {
      * @return Whether the operation was successful.
      */
     public boolean requestExtensionUpdate(List<ComponentName> extensions) {
-        try {
-            if (mService != null) {
-                mService.requestExtensionUpdate(extensions, mCallback);
-            }
-            return true;
-        } catch (RemoteException ex) {
-            // Ignore
-        }
-        return false;
+        return mConnection.requestExtensionUpdate(mClient, extensions);
     }
 
     /**
@@ -346,6 +520,7 @@ public abstract class DashClockHost {
      * DashClockExtension#PERMISSION_READ_EXTENSION_DATA} is already installed.
      *
      * @see #getOtherAppsWithReadDataExtensionsPermission(android.content.Context)
+     * @see #getOtherAppsWithReadDataExtensionsPermission(Context, OtherAppsCallback)
      */
     public final Intent getMultiplexerDownloadIntent() {
         // First we need to check if there are other apps that declare the READ_EXTENSION_DATA
@@ -366,12 +541,23 @@ public abstract class DashClockHost {
      */
 
     private Context mContext;
-    private IDataConsumerHost mService;
+    private final SharedHostConnection mConnection;
     private List<ExtensionListing> mAvailableExtensions;
     private boolean mNonWorldReadableExtensionsVisible;
     private final Map<ComponentName, ExtensionData> mDataCache;
-    private Set<ComponentName> mListenedExtensions;
-    private boolean mDestroyed;
+    private volatile boolean mDestroyed;
+
+    // Extensions passed to listenTo(), as opposed to those only listened to by subscriptions
+    private volatile Set<ComponentName> mListenedExtensions = Collections.emptySet();
+    private final Object mListenLock = new Object();
+    // Guarded by mDataCache
+    private final List<ExtensionDataSubscription> mSubscriptions = new ArrayList<>();
+
+    // Snapshot support; see DashClockHost(Context, String)
+    private static final int SAVE_SNAPSHOT_DELAY = 2000;
+    private AtomicFile mSnapshotFile;
+    private final Set<ComponentName> mStaleExtensions = new HashSet<>();
+    private volatile boolean mAvailableExtensionsStale;
 
     // We assume that multiplexer is initially present. This makes sure
     // onMultiplexerChangedDetected is called if the multiplexer isn't present initially
@@ -379,76 +565,79 @@ public abstract class DashClockHost {
 
     private final Handler mHandler;
 
-    private ServiceConnection mConnection = new ServiceConnection() {
-        @Override
-        public void onServiceConnected(ComponentName name, IBinder service) {
-            mService = IDataConsumerHost.Stub.asInterface(service);
-            try {
-                if (mListenedExtensions != null) {
-                    listenTo(mListenedExtensions);
-                }
-                Message msg = mHandler.obtainMessage(MSG_NOTIFY_EXTENSION_LIST_CHANGE,
-                        mService.areNonWorldReadableExtensionsVisible() ? 0 : 1,
-                        0,
-                        mService.getAvailableExtensions());
-                msg.sendToTarget();
-            } catch (RemoteException ex) {
-                mService = null;
-            }
+    public void handleMultiplexerPackageChanged() {
+        // Package broadcasts aren't ordered between receivers, so don't rely on ours having
+        // cleared the cached lookup already
+        invalidateOtherAppsWithReadDataExtensionsPermission();
+        boolean isMultiplexerPresent = isMultiplexerServicePresent(mContext);
+        if (mIsMultiplexerPresent != isMultiplexerPresent) {
+            mConnection.onMultiplexerPackageChanged(isMultiplexerPresent);
+            onMultiplexerChangedDetected(isMultiplexerPresent);
+            mIsMultiplexerPresent = isMultiplexerPresent;
         }
+    }
 
+    private final SharedHostConnection.Client mClient = new SharedHostConnection.Client() {
         @Override
-        public void onServiceDisconnected(ComponentName name) {
-            mNonWorldReadableExtensionsVisible = false;
-            mAvailableExtensions.clear();
-            mService = null;
+        public void onAvailableExtensionsChanged(List<ExtensionListing> extensions,
+                boolean nonWorldReadableExtensionsVisible) {
             if (!mDestroyed) {
-                mHandler.sendEmptyMessageDelayed(MSG_RECONNECT, AUTO_RECONNECT_DELAY);
+                mHandler.obtainMessage(MSG_NOTIFY_EXTENSION_LIST_CHANGE,
+                        nonWorldReadableExtensionsVisible ? 0 : 1,
+                        0,
+                        extensions).sendToTarget();
             }
         }
-    };
 
-    public void handleMultiplexerPackageChanged() {
-        boolean isMultiplexerPresent = isMultiplexerServicePresent(mContext);
-        if (mIsMultiplexerPresent != isMultiplexerPresent) {
-            if (isMultiplexerPresent && mService == null) {
-                // Reconnect the service
-                Message msg = mHandler.obtainMessage(MSG_RECONNECT);
-                msg.sendToTarget();
-            } else if (!isMultiplexerPresent && mService != null) {
-                mContext.unbindService(mConnection);
+        @Override
+        public void onExtensionDataChanged(ComponentName extension, ExtensionData data) {
+            List<ExtensionDataSubscription> subscriptions = null;
+            synchronized (mDataCache) {
+                mDataCache.put(extension, data);
+                mStaleExtensions.remove(extension);
+                // Offer while holding the lock, so a concurrent subscribe() can't deliver older
+                // data after this
+                for (ExtensionDataSubscription subscription : mSubscriptions) {
+                    if (subscription.getExtensions().contains(extension)) {
+                        subscription.offer(extension, data);
+                        if (subscriptions == null) {
+                            subscriptions = new ArrayList<>();
+                        }
+                        subscriptions.add(subscription);
+                    }
+                }
+            }
+            if (subscriptions != null) {
+                for (ExtensionDataSubscription subscription : subscriptions) {
+                    subscription.scheduleDrain();
+                }
+            }
+            if (!mDestroyed) {
+                mHandler.obtainMessage(MSG_NOTIFY_DATA_CHANGE, extension).sendToTarget();
             }
-
-            onMultiplexerChangedDetected(isMultiplexerPresent);
-            mIsMultiplexerPresent = isMultiplexerPresent;
         }
-    }
 
-    private final IDataConsumerHostCallback.Stub mCallback = new IDataConsumerHostCallback.Stub() {
         @Override
-        public void notifyUpdate(ComponentName source, ExtensionData data) {
-            synchronized (mDataCache) {
-                mDataCache.put(source, data);
+        public void onMultiplexerNotAvailable() {
+            if (!mDestroyed) {
+                mHandler.obtainMessage(MSG_NOTIFY_MUX_NOT_AVAILABLE).sendToTarget();
             }
-            mHandler.obtainMessage(MSG_NOTIFY_DATA_CHANGE, source).sendToTarget();
         }
 
         @Override
-        public void notifyAvailableExtensionChanged(List<ExtensionListing> extensions,
-                                                    boolean nonWorldReadableExtensionsVisible) {
-            mHandler.obtainMessage(MSG_NOTIFY_EXTENSION_LIST_CHANGE,
-                    nonWorldReadableExtensionsVisible ? 0 : 1,
-                    0,
-                    extensions).sendToTarget();
+        public void onDisconnected() {
+            if (!mDestroyed) {
+                mHandler.obtainMessage(MSG_NOTIFY_DISCONNECTED).sendToTarget();
+            }
         }
     };
 
-    private static final int AUTO_RECONNECT_DELAY = 5000;
-
     private static final int MSG_NOTIFY_EXTENSION_LIST_CHANGE = 1;
     private static final int MSG_NOTIFY_DATA_CHANGE = 2;
-    private static final int MSG_RECONNECT = 3;
+    private static final int MSG_NOTIFY_DISCONNECTED = 3;
     private static final int MSG_NOTIFY_MUX_NOT_AVAILABLE = 4;
+    private static final int MSG_SAVE_SNAPSHOT = 5;
+    private static final int MSG_NOTIFY_SNAPSHOT_RESTORED = 6;
 
     private final Handler.Callback mHandlerCallback = new Handler.Callback() {
         @Override
@@ -459,55 +648,89 @@ public abstract class DashClockHost {
                     mAvailableExtensions.clear();
                     mAvailableExtensions.addAll((List<ExtensionListing>) msg.obj);
                     mNonWorldReadableExtensionsVisible = msg.arg1 == 0;
+                    mAvailableExtensionsStale = false;
+                    scheduleSaveSnapshot();
                     onAvailableExtensionsChanged();
                     return true;
                 case MSG_NOTIFY_DATA_CHANGE:
-                    onExtensionDataChanged((ComponentName) msg.obj);
-                    return true;
-                case MSG_RECONNECT:
-                    try {
-                        if (!connect()) {
-                            mHandler.sendEmptyMessageDelayed(MSG_RECONNECT, AUTO_RECONNECT_DELAY);
-                        }
-                    } catch (NoMultiplexerAvailableException | SecurityException e) {
-                        // Reconnect will not work, so stop here
+                    if (msg.arg1 == 0) {
+                        // Not restored from the snapshot
+                        scheduleSaveSnapshot();
+                    }
+                    if (msg.arg1 == 1 || mListenedExtensions.contains(msg.obj)) {
+                        // Don't notify about extensions only listened to by subscriptions
+                        onExtensionDataChanged((ComponentName) msg.obj);
                     }
                     return true;
+                case MSG_NOTIFY_DISCONNECTED:
+                    mNonWorldReadableExtensionsVisible = false;
+                    mAvailableExtensions.clear();
+                    return true;
                 case MSG_NOTIFY_MUX_NOT_AVAILABLE:
                     onMultiplexerChangedDetected(false);
                     mIsMultiplexerPresent = false;
                     return true;
+                case MSG_SAVE_SNAPSHOT:
+                    saveSnapshot();
+                    return true;
+                case MSG_NOTIFY_SNAPSHOT_RESTORED:
+                    onAvailableExtensionsChanged();
+                    return true;
             }
             return false;
         }
     };
 
-    /**
-     * Connects to the {@link IDataConsumerHost} multiplexer service.
-     *
-     * @return If connection to the multiplexer service was successful.
-     */
-    private boolean connect() throws SecurityException, NoMultiplexerAvailableException {
-        ComponentName cn = getMultiplexerService(mContext);
-        if (cn == null) {
-            throw new NoMultiplexerAvailableException("Multiplexer service not installed");
+    private void restoreSnapshot() {
+        HostSnapshot snapshot = HostSnapshot.read(mSnapshotFile);
+        if (snapshot == null) {
+            return;
+        }
+
+        mAvailableExtensions.addAll(snapshot.availableExtensions);
+        mNonWorldReadableExtensionsVisible = snapshot.nonWorldReadableExtensionsVisible;
+        mAvailableExtensionsStale = true;
+        synchronized (mDataCache) {
+            mDataCache.putAll(snapshot.data);
+            mStaleExtensions.addAll(snapshot.data.keySet());
         }
 
-        // The multiplexer host service checks this, but we want to receive
-        // this prior to binding to the service.
-        enforcePermission(mContext, BIND_DATA_CONSUMER_PERMISSION);
+        // Notify the subclass once it's fully constructed.
+        mHandler.sendEmptyMessage(MSG_NOTIFY_SNAPSHOT_RESTORED);
+        for (ComponentName cn : snapshot.data.keySet()) {
+            mHandler.obtainMessage(MSG_NOTIFY_DATA_CHANGE, 1, 0, cn).sendToTarget();
+        }
+    }
+
+    private void scheduleSaveSnapshot() {
+        if (mSnapshotFile != null && !mHandler.hasMessages(MSG_SAVE_SNAPSHOT)) {
+            mHandler.sendEmptyMessageDelayed(MSG_SAVE_SNAPSHOT, SAVE_SNAPSHOT_DELAY);
+        }
+    }
 
-        // Instantiate the multiplexer service
-        Intent intent = new Intent();
-        intent.setComponent(cn);
-        return mContext.bindService(intent, mConnection, Context.BIND_AUTO_CREATE);
+    private void saveSnapshot() {
+        mHandler.removeMessages(MSG_SAVE_SNAPSHOT);
+        final HostSnapshot snapshot = new HostSnapshot();
+        snapshot.availableExtensions.addAll(mAvailableExtensions);
+        snapshot.nonWorldReadableExtensionsVisible = mNonWorldReadableExtensionsVisible;
+        synchronized (mDataCache) {
+            snapshot.data.putAll(mDataCache);
+        }
+
+        final AtomicFile file = mSnapshotFile;
+        AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                snapshot.write(file);
+            }
+        });
     }
 
     /**
      * Returns the name of a MultiplexerHostService present in the system or {@code null}
      * if there isn't service available.
      */
-    private static ComponentName getMultiplexerService(Context context) {
+    static ComponentName getMultiplexerService(Context context) {
         PackageManager pm = context.getPackageManager();
         boolean debuggable =
                 (context.getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
@@ -535,7 +758,7 @@ public abstract class DashClockHost {
         return null;
     }
 
-    private static void enforcePermission(Context context, String permission)
+    static void enforcePermission(Context context, String permission)
             throws SecurityException {
         // Check whether any of the caller's packages requests the expected permission
         final PackageManager pm = context.getPackageManager();
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.dashclock.api.host;
+
+import android.content.ComponentName;
+import android.util.Log;
+
+import com.google.android.apps.dashclock.api.ExtensionData;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A subscription to data updates for a set of extensions, created with
+ * {@link DashClockHost#subscribe(Set, Executor, Listener)}.
+ *
+ * <p>
+ * Updates are delivered on the subscription's executor and are conflated: while the listener is
+ * busy (or the executor is backed up), only the latest data for each extension is kept, so a
+ * slow subscriber skips intermediate values instead of queueing them. Each subscription has at
+ * most one task queued on its executor at any time, and is never called concurrently.
+ */
+public final class ExtensionDataSubscription {
+    private static final String TAG = "ExtensionDataSubscription";
+
+    /**
+     * Receives the data updates of a subscription.
+     */
+    public interface Listener {
+        /**
+         * Called on the subscription's executor with the latest known data for one of the
+         * subscribed extensions.
+         */
+        void onExtensionDataChanged(ComponentName extension, ExtensionData data);
+    }
+
+    private final DashClockHost mHost;
+    private final Set<ComponentName> mExtensions;
+    private final Executor mExecutor;
+    private final Listener mListener;
+
+    private final Map<ComponentName, ExtensionData> mPending = new LinkedHashMap<>();
+    private boolean mDrainScheduled;
+    private volatile boolean mCancelled;
+
+    ExtensionDataSubscription(DashClockHost host, Set<ComponentName> extensions,
+            Executor executor, Listener listener) {
+        mHost = host;
+        mExtensions = Collections.unmodifiableSet(new HashSet<>(extensions));
+        mExecutor = executor;
+        mListener = listener;
+    }
+
+    /**
+     * Returns the extensions this subscription receives updates for.
+     */
+    public Set<ComponentName> getExtensions() {
+        return mExtensions;
+    }
+
+    /**
+     * Returns whether or not this subscription was cancelled, either explicitly or because its
+     * host was destroyed.
+     */
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Cancels this subscription. Updates that haven't been delivered yet are dropped; if the
+     * listener is running when this is called, it finishes its current call. Cancelling an
+     * already cancelled subscription does nothing.
+     */
+    public void cancel() {
+        if (cancelInternal()) {
+            mHost.removeSubscription(this);
+        }
+    }
+
+    boolean cancelInternal() {
+        synchronized (this) {
+            if (mCancelled) {
+                return false;
+            }
+            mCancelled = true;
+            mPending.clear();
+            return true;
+        }
+    }
+
+    /**
+     * Records the latest data for an extension, replacing any undelivered data for it. Doesn't
+     * call out to the executor, so it's safe to call while holding the host's locks; call
+     * {@link #scheduleDrain()} afterwards.
+     */
+    void offer(ComponentName extension, ExtensionData data) {
+        synchronized (this) {
+            if (!mCancelled) {
+                mPending.put(extension, data);
+            }
+        }
+    }
+
+    /**
+     * Makes sure pending updates get delivered, queueing a task on the executor unless one is
+     * queued already.
+     */
+    void scheduleDrain() {
+        synchronized (this) {
+            if (mDrainScheduled || mPending.isEmpty()) {
+                return;
+            }
+            mDrainScheduled = true;
+        }
+
+        try {
+            mExecutor.execute(mDrainRunnable);
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Subscription executor rejected an update; dropping it.", e);
+            synchronized (this) {
+                mDrainScheduled = false;
+                mPending.clear();
+            }
+        }
+    }
+
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            boolean drained = false;
+            try {
+                while (true) {
+                    Map<ComponentName, ExtensionData> batch;
+                    synchronized (ExtensionDataSubscription.this) {
+                        if (mPending.isEmpty() || mCancelled) {
+                            mDrainScheduled = false;
+                            drained = true;
+                            return;
+                        }
+                        batch = new LinkedHashMap<>(mPending);
+                        mPending.clear();
+                    }
+
+                    for (Map.Entry<ComponentName, ExtensionData> entry : batch.entrySet()) {
+                        if (mCancelled) {
+                            break;
+                        }
+                        mListener.onExtensionDataChanged(entry.getKey(), entry.getValue());
+                    }
+                }
+            } finally {
+                if (!drained) {
+                    // The listener threw; let later updates schedule a new drain instead of
+                    // waiting forever on this one.
+                    synchronized (ExtensionDataSubscription.this) {
+                        mDrainScheduled = false;
+                    }
+                }
+            }
+        }
+    };
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.dashclock.api.host;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.util.AtomicFile;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import com.google.android.apps.dashclock.api.ExtensionData;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The last known state of a {@link DashClockHost} (available extensions and their data),
+ * persisted as a small JSON file so that hosts can show something before the multiplexer service
+ * is connected.
+ */
+final class HostSnapshot {
+    private static final String TAG = "HostSnapshot";
+
+    private static final int VERSION = 1;
+
+    private static final String KEY_VERSION = "version";
+    private static final String KEY_NON_WORLD_READABLE_VISIBLE = "nonWorldReadableVisible";
+    private static final String KEY_EXTENSIONS = "extensions";
+    private static final String KEY_DATA = "data";
+
+    private static final String KEY_COMPONENT_NAME = "component";
+    private static final String KEY_PROTOCOL_VERSION = "protocolVersion";
+    private static final String KEY_COMPATIBLE = "compatible";
+    private static final String KEY_WORLD_READABLE = "worldReadable";
+    private static final String KEY_TITLE = "title";
+    private static final String KEY_DESCRIPTION = "description";
+    private static final String KEY_ICON = "icon";
+    private static final String KEY_SETTINGS_ACTIVITY = "settingsActivity";
+
+    boolean nonWorldReadableExtensionsVisible;
+    final List<ExtensionListing> availableExtensions = new ArrayList<>();
+    final Map<ComponentName, ExtensionData> data = new HashMap<>();
+
+    static AtomicFile getFile(Context context, String name) {
+        return new AtomicFile(new File(context.getCacheDir(), "dashclock-host-" + name + ".json"));
+    }
+
+    /**
+     * Reads the snapshot from the given file, returning null if there is none or it can't be
+     * read.
+     */
+    static HostSnapshot read(AtomicFile file) {
+        FileInputStream in = null;
+        try {
+            in = file.openRead();
+            JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+            HostSnapshot snapshot = new HostSnapshot();
+            if (!snapshot.readFrom(reader)) {
+                return null;
+            }
+            return snapshot;
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            // A corrupt or truncated file; JsonReader.nextInt throws NumberFormatException for
+            // out-of-range or fractional numbers. Discard the whole snapshot.
+            Log.w(TAG, "Couldn't read host snapshot.", e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes this snapshot to the given file, replacing its contents atomically.
+     */
+    void write(AtomicFile file) {
+        FileOutputStream out = null;
+        try {
+            out = file.startWrite();
+            JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, "UTF-8"));
+            writeTo(writer);
+            writer.flush();
+            file.finishWrite(out);
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't write host snapshot.", e);
+            if (out != null) {
+                file.failWrite(out);
+            }
+        }
+    }
+
+    private boolean readFrom(JsonReader reader) throws IOException {
+        int version = 0;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (KEY_VERSION.equals(name)) {
+                version = reader.nextInt();
+            } else if (KEY_NON_WORLD_READABLE_VISIBLE.equals(name)) {
+                nonWorldReadableExtensionsVisible = reader.nextBoolean();
+            } else if (KEY_EXTENSIONS.equals(name)) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    ExtensionListing listing = readListing(reader);
+                    if (listing.componentName() != null) {
+                        availableExtensions.add(listing);
+                    }
+                }
+                reader.endArray();
+            } else if (KEY_DATA.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    ComponentName cn = ComponentName.unflattenFromString(reader.nextName());
+                    ExtensionData extensionData = new ExtensionData();
+                    extensionData.deserialize(reader);
+                    if (cn != null) {
+                        data.put(cn, extensionData);
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return version == VERSION;
+    }
+
+    private void writeTo(JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writer.name(KEY_VERSION).value(VERSION);
+        writer.name(KEY_NON_WORLD_READABLE_VISIBLE).value(nonWorldReadableExtensionsVisible);
+        writer.name(KEY_EXTENSIONS).beginArray();
+        for (ExtensionListing listing : availableExtensions) {
+            writeListing(writer, listing);
+        }
+        writer.endArray();
+        writer.name(KEY_DATA).beginObject();
+        for (Map.Entry<ComponentName, ExtensionData> entry : data.entrySet()) {
+            if (entry.getValue() != null) {
+                writer.name(entry.getKey().flattenToShortString());
+                entry.getValue().serialize(writer);
+            }
+        }
+        writer.endObject();
+        writer.endObject();
+    }
+
+    private static ExtensionListing readListing(JsonReader reader) throws IOException {
+        ExtensionListing listing = new ExtensionListing();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+            } else if (KEY_COMPONENT_NAME.equals(name)) {
+                listing.componentName(ComponentName.unflattenFromString(reader.nextString()));
+            } else if (KEY_PROTOCOL_VERSION.equals(name)) {
+                listing.protocolVersion(reader.nextInt());
+            } else if (KEY_COMPATIBLE.equals(name)) {
+                listing.compatible(reader.nextBoolean());
+            } else if (KEY_WORLD_READABLE.equals(name)) {
+                listing.worldReadable(reader.nextBoolean());
+            } else if (KEY_TITLE.equals(name)) {
+                listing.title(reader.nextString());
+            } else if (KEY_DESCRIPTION.equals(name)) {
+                listing.description(reader.nextString());
+            } else if (KEY_ICON.equals(name)) {
+                listing.icon(reader.nextInt());
+            } else if (KEY_SETTINGS_ACTIVITY.equals(name)) {
+                listing.settingsActivity(ComponentName.unflattenFromString(reader.nextString()));
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return listing;
+    }
+
+    private static void writeListing(JsonWriter writer, ExtensionListing listing)
+            throws IOException {
+        writer.beginObject();
+        writer.name(KEY_COMPONENT_NAME).value(listing.componentName().flattenToShortString());
+        writer.name(KEY_PROTOCOL_VERSION).value(listing.protocolVersion());
+        writer.name(KEY_COMPATIBLE).value(listing.compatible());
+        writer.name(KEY_WORLD_READABLE).value(listing.worldReadable());
+        writer.name(KEY_TITLE).value(listing.title());
+        writer.name(KEY_DESCRIPTION).value(listing.description());
+        writer.name(KEY_ICON).value(listing.icon());
+        if (listing.settingsActivity() != null) {
+            writer.name(KEY_SETTINGS_ACTIVITY)
+                    .value(listing.settingsActivity().flattenToShortString());
+        }
+        writer.endObject();
+    }
+}
@@ -0,0 +1,466 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.dashclock.api.host;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.RemoteException;
+
+import com.google.android.apps.dashclock.api.ExtensionData;
+import com.google.android.apps.dashclock.api.internal.IDataConsumerHost;
+import com.google.android.apps.dashclock.api.internal.IDataConsumerHostCallback;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The single connection to the multiplexer service shared by all {@link DashClockHost} instances
+ * in a process. It binds once, registers one callback listening to the union of the extensions
+ * that its clients listen to, and fans data out to the interested clients locally. The connection
+ * is reference counted: it's established when the first client is added and torn down when the
+ * last one is removed.
+ */
+final class SharedHostConnection {
+    private static final int AUTO_RECONNECT_DELAY = 5000;
+
+    private static SharedHostConnection sInstance;
+
+    /**
+     * A {@link DashClockHost}'s view of the shared connection. Methods are called on arbitrary
+     * threads; implementations should hand off to their own thread.
+     */
+    interface Client {
+        void onAvailableExtensionsChanged(List<ExtensionListing> extensions,
+                boolean nonWorldReadableExtensionsVisible);
+
+        void onExtensionDataChanged(ComponentName extension, ExtensionData data);
+
+        void onMultiplexerNotAvailable();
+
+        void onDisconnected();
+    }
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Map<Client, Set<ComponentName>> mClients = new LinkedHashMap<>();
+    private final Map<ComponentName, ExtensionData> mDataCache = new HashMap<>();
+    private Set<ComponentName> mListenedExtensions = Collections.emptySet();
+    private List<ExtensionListing> mAvailableExtensions;
+    private boolean mNonWorldReadableExtensionsVisible;
+    private IDataConsumerHost mService;
+
+    // Held for the whole of each bind and unbind sequence, so that they never interleave. mBound
+    // (also guarded by this) is only changed while holding it, and is only set once bindService
+    // has succeeded.
+    private final Object mConnectLock = new Object();
+    private boolean mBound;
+
+    private SharedHostConnection(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    /**
+     * Adds a client, connecting to the multiplexer service if not yet connected. If the
+     * multiplexer service isn't available, the client is notified through
+     * {@link Client#onMultiplexerNotAvailable()}.
+     */
+    static SharedHostConnection acquire(Context context, Client client) {
+        SharedHostConnection connection;
+        synchronized (SharedHostConnection.class) {
+            if (sInstance == null) {
+                sInstance = new SharedHostConnection(context);
+            }
+            connection = sInstance;
+            // Added while holding the class lock, so that the instance can't be released in
+            // between.
+            synchronized (connection) {
+                connection.mClients.put(client, Collections.<ComponentName>emptySet());
+            }
+        }
+
+        connection.onClientAdded(client);
+        return connection;
+    }
+
+    /**
+     * Removes a client, disconnecting from the multiplexer service if this was the last one.
+     */
+    void release(Client client) {
+        boolean lastClient;
+        synchronized (SharedHostConnection.class) {
+            synchronized (this) {
+                mClients.remove(client);
+                lastClient = mClients.isEmpty();
+                if (lastClient && sInstance == this) {
+                    sInstance = null;
+                }
+            }
+        }
+
+        if (lastClient) {
+            disconnect();
+        } else {
+            updateListenedExtensions();
+        }
+    }
+
+    private void onClientAdded(Client client) {
+        List<ExtensionListing> availableExtensions;
+        boolean nonWorldReadableExtensionsVisible;
+        boolean bound;
+        synchronized (this) {
+            availableExtensions = mAvailableExtensions;
+            nonWorldReadableExtensionsVisible = mNonWorldReadableExtensionsVisible;
+            bound = mBound;
+        }
+
+        if (!bound) {
+            // Does nothing if another client's connection attempt gets there first
+            tryConnect(Collections.singletonList(client));
+        } else if (availableExtensions != null) {
+            // Already connected; bring the new client up to date.
+            client.onAvailableExtensionsChanged(availableExtensions,
+                    nonWorldReadableExtensionsVisible);
+        }
+    }
+
+    /**
+     * Updates the set of extensions the given client listens to. Data already known for newly
+     * listened extensions is delivered to the client right away.
+     */
+    void listenTo(Client client, Set<ComponentName> extensions) {
+        Set<ComponentName> newExtensions = (extensions == null)
+                ? Collections.<ComponentName>emptySet()
+                : new HashSet<>(extensions);
+        Map<ComponentName, ExtensionData> knownData = new HashMap<>();
+        synchronized (this) {
+            Set<ComponentName> oldExtensions = mClients.get(client);
+            if (oldExtensions == null) {
+                return;
+            }
+
+            mClients.put(client, newExtensions);
+            for (ComponentName cn : newExtensions) {
+                if (!oldExtensions.contains(cn) && mDataCache.containsKey(cn)) {
+                    knownData.put(cn, mDataCache.get(cn));
+                }
+            }
+        }
+
+        for (Map.Entry<ComponentName, ExtensionData> entry : knownData.entrySet()) {
+            client.onExtensionDataChanged(entry.getKey(), entry.getValue());
+        }
+        updateListenedExtensions();
+    }
+
+    /**
+     * Returns the extensions the given client listens to.
+     */
+    synchronized Set<ComponentName> getListenedExtensions(Client client) {
+        Set<ComponentName> extensions = mClients.get(client);
+        return (extensions == null)
+                ? Collections.<ComponentName>emptySet()
+                : Collections.unmodifiableSet(extensions);
+    }
+
+    boolean showExtensionSettings(ComponentName extension) {
+        IDataConsumerHost service = getService();
+        if (service == null) {
+            return false;
+        }
+
+        try {
+            service.showExtensionSettings(extension, mCallback);
+            return true;
+        } catch (RemoteException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Requests an update of the given extensions, which must all be listened to by the given
+     * client. If <code>extensions</code> is null, all the extensions the client listens to are
+     * updated.
+     */
+    boolean requestExtensionUpdate(Client client, List<ComponentName> extensions) {
+        IDataConsumerHost service = getService();
+        if (service == null) {
+            // Nothing to update yet
+            return true;
+        }
+
+        if (extensions == null) {
+            extensions = new ArrayList<>(getListenedExtensions(client));
+        }
+
+        try {
+            service.requestExtensionUpdate(extensions, mCallback);
+            return true;
+        } catch (RemoteException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Reacts to the multiplexer app being installed or removed.
+     */
+    void onMultiplexerPackageChanged(boolean multiplexerPresent) {
+        boolean bound;
+        synchronized (this) {
+            bound = mBound;
+        }
+
+        if (multiplexerPresent && !bound) {
+            mHandler.post(mReconnectRunnable);
+        } else if (!multiplexerPresent && bound) {
+            disconnect();
+        }
+    }
+
+    private synchronized IDataConsumerHost getService() {
+        return mService;
+    }
+
+    /**
+     * Registers the union of all the clients' extensions with the multiplexer service, if it
+     * changed.
+     */
+    private void updateListenedExtensions() {
+        IDataConsumerHost service;
+        List<ComponentName> extensionList;
+        synchronized (this) {
+            Set<ComponentName> union = new HashSet<>();
+            for (Set<ComponentName> extensions : mClients.values()) {
+                union.addAll(extensions);
+            }
+
+            if (union.equals(mListenedExtensions)) {
+                return;
+            }
+
+            mListenedExtensions = union;
+            mDataCache.keySet().retainAll(union);
+            service = mService;
+            extensionList = union.isEmpty() ? null : new ArrayList<>(union);
+        }
+
+        if (service != null) {
+            try {
+                service.listenTo(extensionList, mCallback);
+            } catch (RemoteException e) {
+                // Ignore
+            }
+        }
+    }
+
+    /**
+     * Connects to the multiplexer service, unless already bound or there are no clients left
+     * (i.e. the connection was released).
+     */
+    private void tryConnect(List<Client> clientsToNotifyOnError) {
+        synchronized (mConnectLock) {
+            synchronized (this) {
+                if (mBound || mClients.isEmpty()) {
+                    return;
+                }
+            }
+
+            tryConnectLocked(clientsToNotifyOnError);
+        }
+    }
+
+    private void tryConnectLocked(List<Client> clientsToNotifyOnError) {
+        boolean bound = false;
+        try {
+            ComponentName cn = DashClockHost.getMultiplexerService(mContext);
+            if (cn == null) {
+                throw new DashClockHost.NoMultiplexerAvailableException(
+                        "Multiplexer service not installed");
+            }
+
+            // The multiplexer host service checks this, but we want to receive
+            // this prior to binding to the service.
+            DashClockHost.enforcePermission(mContext,
+                    DashClockHost.BIND_DATA_CONSUMER_PERMISSION);
+
+            // Instantiate the multiplexer service
+            Intent intent = new Intent();
+            intent.setComponent(cn);
+            bound = mContext.bindService(intent, mConnection, Context.BIND_AUTO_CREATE);
+            if (!bound) {
+                scheduleReconnect();
+            }
+        } catch (DashClockHost.NoMultiplexerAvailableException | SecurityException e) {
+            // Reconnect will not work, so stop here
+            for (Client client : clientsToNotifyOnError) {
+                client.onMultiplexerNotAvailable();
+            }
+        } finally {
+            synchronized (this) {
+                mBound = bound;
+            }
+        }
+    }
+
+    private void disconnect() {
+        mHandler.removeCallbacks(mReconnectRunnable);
+        synchronized (mConnectLock) {
+            IDataConsumerHost service;
+            boolean bound;
+            synchronized (this) {
+                service = mService;
+                bound = mBound;
+                mService = null;
+                mBound = false;
+                mAvailableExtensions = null;
+                mDataCache.clear();
+            }
+
+            if (service != null) {
+                try {
+                    service.listenTo(null, mCallback);
+                } catch (RemoteException e) {
+                    // ignored
+                }
+            }
+            if (bound) {
+                mContext.unbindService(mConnection);
+            }
+        }
+    }
+
+    private void scheduleReconnect() {
+        mHandler.removeCallbacks(mReconnectRunnable);
+        mHandler.postDelayed(mReconnectRunnable, AUTO_RECONNECT_DELAY);
+    }
+
+    private final Runnable mReconnectRunnable = new Runnable() {
+        @Override
+        public void run() {
+            List<Client> clients;
+            synchronized (SharedHostConnection.this) {
+                clients = new ArrayList<>(mClients.keySet());
+            }
+
+            tryConnect(clients);
+        }
+    };
+
+    private final ServiceConnection mConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            IDataConsumerHost service = IDataConsumerHost.Stub.asInterface(binder);
+            List<ComponentName> extensionList;
+            synchronized (SharedHostConnection.this) {
+                mService = service;
+                extensionList = mListenedExtensions.isEmpty()
+                        ? null : new ArrayList<>(mListenedExtensions);
+            }
+
+            try {
+                if (extensionList != null) {
+                    service.listenTo(extensionList, mCallback);
+                }
+                mCallback.notifyAvailableExtensionChanged(service.getAvailableExtensions(),
+                        service.areNonWorldReadableExtensionsVisible());
+            } catch (RemoteException ex) {
+                synchronized (SharedHostConnection.this) {
+                    mService = null;
+                }
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            List<Client> clients;
+            synchronized (SharedHostConnection.this) {
+                mService = null;
+                mAvailableExtensions = null;
+                mNonWorldReadableExtensionsVisible = false;
+                clients = new ArrayList<>(mClients.keySet());
+            }
+
+            for (Client client : clients) {
+                client.onDisconnected();
+            }
+
+            if (!clients.isEmpty()) {
+                // Rebind after a delay, in case the service went away for good.
+                synchronized (mConnectLock) {
+                    boolean bound;
+                    synchronized (SharedHostConnection.this) {
+                        bound = mBound;
+                        mBound = false;
+                    }
+                    if (bound) {
+                        mContext.unbindService(this);
+                    }
+                }
+                scheduleReconnect();
+            }
+        }
+    };
+
+    private final IDataConsumerHostCallback.Stub mCallback = new IDataConsumerHostCallback.Stub() {
+        @Override
+        public void notifyUpdate(ComponentName source, ExtensionData data) {
+            List<Client> interestedClients = new ArrayList<>();
+            synchronized (SharedHostConnection.this) {
+                if (!mListenedExtensions.contains(source)) {
+                    return;
+                }
+
+                mDataCache.put(source, data);
+                for (Map.Entry<Client, Set<ComponentName>> entry : mClients.entrySet()) {
+                    if (entry.getValue().contains(source)) {
+                        interestedClients.add(entry.getKey());
+                    }
+                }
+            }
+
+            for (Client client : interestedClients) {
+                client.onExtensionDataChanged(source, data);
+            }
+        }
+
+        @Override
+        public void notifyAvailableExtensionChanged(List<ExtensionListing> extensions,
+                boolean nonWorldReadableExtensionsVisible) {
+            List<Client> clients;
+            synchronized (SharedHostConnection.this) {
+                mAvailableExtensions = extensions;
+                mNonWorldReadableExtensionsVisible = nonWorldReadableExtensionsVisible;
+                clients = new ArrayList<>(mClients.keySet());
+            }
+
+            for (Client client : clients) {
+                client.onAvailableExtensionsChanged(extensions, nonWorldReadableExtensionsVisible);
+            }
+        }
+    };
+}
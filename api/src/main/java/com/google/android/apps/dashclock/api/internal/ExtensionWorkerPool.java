@@ -0,0 +1,140 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.dashclock.api.internal;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small, process-wide pool of worker threads shared by all extensions in a process that opt
+ * into it (see the <code>sharedWorkerPool</code> meta-data in
+ * {@link com.google.android.apps.dashclock.api.DashClockExtension}). Each extension gets its own
+ * {@link SerialQueue}, so work for a given extension still runs one task at a time, in order,
+ * while work for different extensions can run in parallel on up to {@link #MAX_THREADS} threads.
+ * Idle threads exit after {@link #KEEP_ALIVE_SECONDS}, so a process whose extensions are all idle
+ * has no worker threads at all.
+ *
+ * <p>
+ * This class is an implementation detail of the DashClock API and is not part of its public
+ * interface.
+ */
+public final class ExtensionWorkerPool {
+    public static final int MAX_THREADS = 2;
+    public static final int KEEP_ALIVE_SECONDS = 30;
+
+    private static ThreadPoolExecutor sExecutor;
+
+    private ExtensionWorkerPool() {
+    }
+
+    private static synchronized Executor getExecutor() {
+        if (sExecutor == null) {
+            final AtomicInteger threadCount = new AtomicInteger();
+            sExecutor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS,
+                    KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            return new Thread(runnable,
+                                    "DashClockExtensionPool:" + threadCount.incrementAndGet());
+                        }
+                    });
+            sExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sExecutor;
+    }
+
+    /**
+     * Creates a new queue whose tasks run serially on the shared pool.
+     */
+    public static SerialQueue newSerialQueue() {
+        return new SerialQueue(getExecutor());
+    }
+
+    /**
+     * An {@link Executor} that runs its tasks one at a time, in submission order, on the shared
+     * pool. At most one task per queue occupies a pool thread at any time.
+     */
+    public static final class SerialQueue implements Executor {
+        private final Executor mExecutor;
+        private final ArrayDeque<Runnable> mTasks = new ArrayDeque<Runnable>();
+        private boolean mRunning;
+
+        private final Runnable mRunNextRunnable = new Runnable() {
+            @Override
+            public void run() {
+                runNext();
+            }
+        };
+
+        SerialQueue(Executor executor) {
+            mExecutor = executor;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            synchronized (mTasks) {
+                mTasks.add(task);
+                if (mRunning) {
+                    return;
+                }
+                mRunning = true;
+            }
+            mExecutor.execute(mRunNextRunnable);
+        }
+
+        /**
+         * Removes all tasks that haven't started running yet.
+         */
+        public void clear() {
+            synchronized (mTasks) {
+                mTasks.clear();
+            }
+        }
+
+        private void runNext() {
+            Runnable task;
+            synchronized (mTasks) {
+                task = mTasks.poll();
+                if (task == null) {
+                    mRunning = false;
+                    return;
+                }
+            }
+
+            try {
+                task.run();
+            } finally {
+                // Run the next task as a separate pool task rather than looping here, so that a
+                // busy extension can't starve the others.
+                synchronized (mTasks) {
+                    if (mTasks.isEmpty()) {
+                        mRunning = false;
+                    } else {
+                        mExecutor.execute(mRunNextRunnable);
+                    }
+                }
+            }
+        }
+    }
+}
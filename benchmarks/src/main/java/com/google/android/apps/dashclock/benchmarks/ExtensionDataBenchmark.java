@@ -0,0 +1,146 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.dashclock.benchmarks;
+
+import com.google.android.apps.dashclock.api.ExtensionData;
+
+import android.os.Parcel;
+import android.util.JsonReader;
+import android.util.JsonWriter;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for {@link ExtensionData} parceling, JSON serialization and equality (see
+ * {@link ExtensionDataCleanBenchmark} for cleaning).
+ * The <code>*LegacyV2</code> variants reproduce the previous parcel format as a baseline.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ExtensionDataBenchmark {
+    @Param({Payloads.MINIMAL, Payloads.REALISTIC})
+    public String payload;
+
+    private ExtensionData mData;
+    private ExtensionData mEqualData;
+    private Parcel mWriteParcel;
+    private Parcel mV3Parcel;
+    private Parcel mV2Parcel;
+    private String mJson;
+
+    @Setup
+    public void setUp() throws JSONException {
+        mData = Payloads.extensionData(payload);
+        mEqualData = Payloads.extensionData(payload);
+        mWriteParcel = Parcel.obtain();
+
+        mV3Parcel = Parcel.obtain();
+        mData.writeToParcel(mV3Parcel, 0);
+
+        mV2Parcel = Parcel.obtain();
+        LegacyParcels.writeV2(mData, mV2Parcel);
+
+        mJson = mData.serialize().toString();
+    }
+
+    @Benchmark
+    public int parcelWrite() {
+        // Rewind rather than recycle, since a recycled Parcel must not be used again.
+        mWriteParcel.setDataPosition(0);
+        mWriteParcel.setDataSize(0);
+        mData.writeToParcel(mWriteParcel, 0);
+        return mWriteParcel.dataSize();
+    }
+
+    @Benchmark
+    public int parcelWriteLegacyV2() {
+        mWriteParcel.setDataPosition(0);
+        mWriteParcel.setDataSize(0);
+        LegacyParcels.writeV2(mData, mWriteParcel);
+        return mWriteParcel.dataSize();
+    }
+
+    @Benchmark
+    public ExtensionData parcelRead() {
+        mV3Parcel.setDataPosition(0);
+        return ExtensionData.CREATOR.createFromParcel(mV3Parcel);
+    }
+
+    @Benchmark
+    public ExtensionData parcelReadLegacyV2() {
+        mV2Parcel.setDataPosition(0);
+        return ExtensionData.CREATOR.createFromParcel(mV2Parcel);
+    }
+
+    @Benchmark
+    public String jsonSerializeTree() throws JSONException {
+        return mData.serialize().toString();
+    }
+
+    @Benchmark
+    public String jsonSerializeStreaming() throws IOException {
+        StringWriter stringWriter = new StringWriter();
+        mData.serialize(new JsonWriter(stringWriter));
+        return stringWriter.toString();
+    }
+
+    @Benchmark
+    public ExtensionData jsonDeserializeTree() throws JSONException {
+        ExtensionData data = new ExtensionData();
+        data.deserialize((JSONObject) new JSONTokener(mJson).nextValue());
+        return data;
+    }
+
+    @Benchmark
+    public ExtensionData jsonDeserializeStreaming() throws IOException {
+        ExtensionData data = new ExtensionData();
+        data.deserialize(new JsonReader(new StringReader(mJson)));
+        return data;
+    }
+
+    @Benchmark
+    public boolean equalsEqual() {
+        return mData.equals(mEqualData);
+    }
+
+    @Benchmark
+    public String toStringDebug() {
+        return mData.toString();
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.dashclock.benchmarks;
+
+import com.google.android.apps.dashclock.api.host.ExtensionListing;
+
+import android.os.Parcel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for {@link ExtensionListing} parceling.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ExtensionListingBenchmark {
+    private ExtensionListing mListing;
+    private Parcel mWriteParcel;
+    private Parcel mReadParcel;
+
+    @Setup
+    public void setUp() {
+        mListing = Payloads.extensionListing();
+        mWriteParcel = Parcel.obtain();
+        mReadParcel = Parcel.obtain();
+        mListing.writeToParcel(mReadParcel, 0);
+    }
+
+    @Benchmark
+    public int parcelWrite() {
+        // Rewind rather than recycle, since a recycled Parcel must not be used again.
+        mWriteParcel.setDataPosition(0);
+        mWriteParcel.setDataSize(0);
+        mListing.writeToParcel(mWriteParcel, 0);
+        return mWriteParcel.dataSize();
+    }
+
+    @Benchmark
+    public ExtensionListing parcelRead() {
+        mReadParcel.setDataPosition(0);
+        return ExtensionListing.CREATOR.createFromParcel(mReadParcel);
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.dashclock.benchmarks;
+
+import com.google.android.apps.dashclock.api.internal.ExtensionWorkerPool;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the latency of updating every extension in a process when each extension has a
+ * dedicated worker thread (the default; modeled here with single-thread executors, since
+ * <code>HandlerThread</code> isn't available on the JVM) and when extensions share
+ * {@link ExtensionWorkerPool}. Each operation requests one update from each of
+ * <code>extensionCount</code> extensions and waits until all of them have run.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ExtensionWorkerPoolBenchmark {
+    @Param({"1", "10"})
+    public int extensionCount;
+
+    @Param({"dedicated", "shared"})
+    public String mode;
+
+    /**
+     * Amount of CPU work done by each update, in {@link Blackhole#consumeCPU(long)} tokens.
+     */
+    @Param({"1000"})
+    public long updateWork;
+
+    private Executor[] mWorkers;
+    private ExecutorService[] mDedicatedThreads;
+
+    @Setup
+    public void setUp() {
+        mWorkers = new Executor[extensionCount];
+        if ("dedicated".equals(mode)) {
+            mDedicatedThreads = new ExecutorService[extensionCount];
+            for (int i = 0; i < extensionCount; i++) {
+                mDedicatedThreads[i] = Executors.newSingleThreadExecutor();
+                mWorkers[i] = mDedicatedThreads[i];
+            }
+        } else {
+            for (int i = 0; i < extensionCount; i++) {
+                mWorkers[i] = ExtensionWorkerPool.newSerialQueue();
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (mDedicatedThreads != null) {
+            for (ExecutorService thread : mDedicatedThreads) {
+                thread.shutdownNow();
+            }
+        }
+    }
+
+    @Benchmark
+    public void updateAll() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(extensionCount);
+        for (Executor worker : mWorkers) {
+            worker.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Blackhole.consumeCPU(updateWork);
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+    }
+}
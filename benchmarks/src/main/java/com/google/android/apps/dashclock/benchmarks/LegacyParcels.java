@@ -0,0 +1,54 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.dashclock.benchmarks;
+
+import com.google.android.apps.dashclock.api.ExtensionData;
+
+import android.os.Parcel;
+import android.text.TextUtils;
+
+/**
+ * Writes {@link ExtensionData} in the previous (v2) parcel format, exactly as the v2 version of
+ * {@link ExtensionData#writeToParcel(Parcel, int)} did, to serve as a baseline.
+ */
+final class LegacyParcels {
+    private LegacyParcels() {
+    }
+
+    static void writeV2(ExtensionData data, Parcel parcel) {
+        parcel.writeInt(2);
+        int sizePosition = parcel.dataPosition();
+        parcel.writeInt(0);
+        int startPosition = parcel.dataPosition();
+        // Version 1 below
+        parcel.writeInt(data.visible() ? 1 : 0);
+        parcel.writeInt(data.icon());
+        parcel.writeString(TextUtils.isEmpty(data.status()) ? "" : data.status());
+        parcel.writeString(TextUtils.isEmpty(data.expandedTitle()) ? "" : data.expandedTitle());
+        parcel.writeString(TextUtils.isEmpty(data.expandedBody()) ? "" : data.expandedBody());
+        parcel.writeString((data.clickIntent() == null) ? "" : data.clickIntent().toUri(0));
+        // Version 2 below
+        parcel.writeString(TextUtils.isEmpty(data.contentDescription())
+                ? "" : data.contentDescription());
+        parcel.writeString(data.iconUri() == null ? "" : data.iconUri().toString());
+        // Go back and write the size
+        int parcelableSize = parcel.dataPosition() - startPosition;
+        parcel.setDataPosition(sizePosition);
+        parcel.writeInt(parcelableSize);
+        parcel.setDataPosition(startPosition + parcelableSize);
+    }
+}
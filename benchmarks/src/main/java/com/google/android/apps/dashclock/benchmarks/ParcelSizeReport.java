@@ -0,0 +1,64 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.dashclock.benchmarks;
+
+import com.google.android.apps.dashclock.api.ExtensionData;
+
+import android.os.Parcel;
+import android.util.JsonWriter;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * Writes the parcel sizes (in bytes) of the benchmark payloads, in the current and previous (v2)
+ * formats, as JSON to the file given as the only argument. Complements the timings written by
+ * JMH.
+ */
+public class ParcelSizeReport {
+    public static void main(String[] args) throws IOException {
+        File outFile = new File(args[0]);
+        outFile.getParentFile().mkdirs();
+        JsonWriter writer = new JsonWriter(new FileWriter(outFile));
+        try {
+            writer.beginObject();
+            writer.name("extensionDataParcelVersion").value(ExtensionData.PARCELABLE_VERSION);
+            for (String payload : new String[]{Payloads.MINIMAL, Payloads.REALISTIC}) {
+                ExtensionData data = Payloads.extensionData(payload);
+
+                Parcel current = Parcel.obtain();
+                data.writeToParcel(current, 0);
+
+                Parcel legacy = Parcel.obtain();
+                LegacyParcels.writeV2(data, legacy);
+
+                writer.name(payload).beginObject()
+                        .name("currentBytes").value(current.dataSize())
+                        .name("legacyV2Bytes").value(legacy.dataSize())
+                        .endObject();
+            }
+
+            Parcel listing = Parcel.obtain();
+            Payloads.extensionListing().writeToParcel(listing, 0);
+            writer.name("extensionListingBytes").value(listing.dataSize());
+            writer.endObject();
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.dashclock.benchmarks;
+
+import com.google.android.apps.dashclock.api.ExtensionData;
+import com.google.android.apps.dashclock.api.host.ExtensionListing;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.net.Uri;
+
+/**
+ * Representative {@link ExtensionData} and {@link ExtensionListing} payloads shared by the
+ * benchmarks.
+ */
+final class Payloads {
+    static final String MINIMAL = "minimal";
+    static final String REALISTIC = "realistic";
+
+    private static final Intent CLICK_INTENT = new Intent(Intent.ACTION_VIEW)
+            .setData(Uri.parse("https://calendar.example.com/event?eid="
+                    + repeat("a1b2c3d4e5f6", 16) + "&ctz=America%2FLos_Angeles&hl=en"))
+            .setComponent(new ComponentName("com.example.calendar",
+                    "com.example.calendar.event.EventDetailsActivity"))
+            .addFlags(Intent.FLAG_ACTIVITY_NEW_TASK)
+            .putExtra("com.example.calendar.extra.EVENT_ID", "event/" + repeat("0123456789", 8))
+            .putExtra("com.example.calendar.extra.BEGIN_TIME", 1451606400)
+            .putExtra("com.example.calendar.extra.ALL_DAY", false);
+
+    private Payloads() {
+    }
+
+    static ExtensionData extensionData(String kind) {
+        if (MINIMAL.equals(kind)) {
+            return new ExtensionData()
+                    .visible(true)
+                    .icon(0x7f020001)
+                    .status("72\u00b0");
+        } else if (REALISTIC.equals(kind)) {
+            return new ExtensionData()
+                    .visible(true)
+                    .icon(0x7f020001)
+                    .iconUri(Uri.parse("content://com.example.calendar.icons/icon/"
+                            + repeat("f00dcafe", 8) + ".png"))
+                    .status("2:30p")
+                    .expandedTitle("Quarterly planning review - Building 44, Room 2F Landing")
+                    .expandedBody(repeat("Agenda: roadmap, staffing, and open questions. ", 22)
+                            .substring(0, ExtensionData.MAX_EXPANDED_BODY_LENGTH))
+                    .contentDescription("Next event at 2:30 PM: Quarterly planning review")
+                    .clickIntent(CLICK_INTENT);
+        }
+        throw new IllegalArgumentException("Unknown payload: " + kind);
+    }
+
+    static ExtensionListing extensionListing() {
+        return new ExtensionListing()
+                .componentName(new ComponentName("com.example.calendar",
+                        "com.example.calendar.dashclock.CalendarExtension"))
+                .protocolVersion(2)
+                .compatible(true)
+                .worldReadable(true)
+                .title("Calendar")
+                .description("Shows your next upcoming event, including location and time")
+                .icon(0x7f020002)
+                .settingsActivity(new ComponentName("com.example.calendar",
+                        "com.example.calendar.dashclock.CalendarSettingsActivity"));
+    }
+
+    private static String repeat(String s, int count) {
+        StringBuilder sb = new StringBuilder(s.length() * count);
+        for (int i = 0; i < count; i++) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.dashclock.benchmarks;
+
+import com.google.android.apps.dashclock.api.internal.ExtensionWorkerPool;
+
+import android.util.JsonWriter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the memory cost of extension workers when each extension has a dedicated worker
+ * thread (modeled with single-thread executors, as in {@link ExtensionWorkerPoolBenchmark}) and
+ * when extensions share {@link ExtensionWorkerPool}, and writes it as JSON to the file given as
+ * the only argument. For each number of extensions, this records the number of threads started,
+ * and the retained Java heap and (on Linux) the resident set size added per extension, after
+ * every worker has run one update. Complements the timings written by JMH.
+ */
+public class WorkerMemoryReport {
+    private static final int[] EXTENSION_COUNTS = {10, 50};
+
+    // Keeps the workers reachable while they're measured
+    private static Executor[] sWorkers;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        File outFile = new File(args[0]);
+        outFile.getParentFile().mkdirs();
+        JsonWriter writer = new JsonWriter(new FileWriter(outFile));
+        try {
+            // Load the executor classes up front, so that the first measurement doesn't include
+            // them.
+            measure("dedicated", 1);
+
+            writer.beginObject();
+            for (int extensionCount : EXTENSION_COUNTS) {
+                writer.name(String.valueOf(extensionCount)).beginObject();
+                // Measure dedicated threads first, since the shared pool's threads outlive
+                // the measurement.
+                for (String mode : new String[]{"dedicated", "shared"}) {
+                    Measurement measurement = measure(mode, extensionCount);
+                    writer.name(mode).beginObject()
+                            .name("threads").value(measurement.threads)
+                            .name("heapBytesPerExtension")
+                            .value(measurement.heapBytes / extensionCount)
+                            .name("rssBytesPerExtension")
+                            .value(measurement.rssBytes < 0
+                                    ? -1 : measurement.rssBytes / extensionCount)
+                            .endObject();
+                }
+                writer.endObject();
+            }
+            writer.endObject();
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static Measurement measure(String mode, int extensionCount)
+            throws IOException, InterruptedException {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        settle();
+        int threadsBefore = threads.getThreadCount();
+        long heapBefore = usedHeapBytes();
+        long rssBefore = rssBytes();
+
+        Executor[] workers = new Executor[extensionCount];
+        ExecutorService[] dedicatedThreads = null;
+        if ("dedicated".equals(mode)) {
+            dedicatedThreads = new ExecutorService[extensionCount];
+            for (int i = 0; i < extensionCount; i++) {
+                dedicatedThreads[i] = Executors.newSingleThreadExecutor();
+                workers[i] = dedicatedThreads[i];
+            }
+        } else {
+            for (int i = 0; i < extensionCount; i++) {
+                workers[i] = ExtensionWorkerPool.newSerialQueue();
+            }
+        }
+
+        final CountDownLatch done = new CountDownLatch(extensionCount);
+        for (Executor worker : workers) {
+            worker.execute(new Runnable() {
+                @Override
+                public void run() {
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+
+        sWorkers = workers;
+        settle();
+        Measurement measurement = new Measurement();
+        measurement.threads = threads.getThreadCount() - threadsBefore;
+        measurement.heapBytes = usedHeapBytes() - heapBefore;
+        long rssAfter = rssBytes();
+        measurement.rssBytes = (rssBefore < 0 || rssAfter < 0) ? -1 : rssAfter - rssBefore;
+        sWorkers = null;
+
+        if (dedicatedThreads != null) {
+            for (ExecutorService thread : dedicatedThreads) {
+                thread.shutdownNow();
+            }
+            for (ExecutorService thread : dedicatedThreads) {
+                thread.awaitTermination(10, TimeUnit.SECONDS);
+            }
+        }
+        return measurement;
+    }
+
+    private static void settle() throws InterruptedException {
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            Thread.sleep(200);
+        }
+    }
+
+    private static long usedHeapBytes() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Returns the resident set size of this process, or -1 if it isn't available (i.e. not on
+     * Linux).
+     */
+    private static long rssBytes() throws IOException {
+        File status = new File("/proc/self/status");
+        if (!status.exists()) {
+            return -1;
+        }
+
+        BufferedReader reader = new BufferedReader(new FileReader(status));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("VmRSS:")) {
+                    String[] parts = line.trim().split("\\s+");
+                    return Long.parseLong(parts[1]) * 1024;
+                }
+            }
+            return -1;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static class Measurement {
+        int threads;
+        long heapBytes;
+        long rssBytes;
+    }
+}
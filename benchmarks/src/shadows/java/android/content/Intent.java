@@ -0,0 +1,380 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.content;
+
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.net.URISyntaxException;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * JVM shadow of the framework's {@link Intent}, for benchmarks only. {@link #toUri(int)},
+ * {@link #parseUri(String, int)} and the parcel format follow the framework's implementation for
+ * the fields DashClock extensions actually use (action, data, type, flags, package, component,
+ * categories and primitive extras).
+ */
+public class Intent implements Parcelable {
+    public static final String ACTION_VIEW = "android.intent.action.VIEW";
+    public static final String ACTION_MAIN = "android.intent.action.MAIN";
+
+    public static final int FLAG_ACTIVITY_NEW_TASK = 0x10000000;
+    public static final int URI_INTENT_SCHEME = 1 << 0;
+
+    private String mAction;
+    private Uri mData;
+    private String mType;
+    private String mPackage;
+    private ComponentName mComponent;
+    private int mFlags;
+    private Set<String> mCategories;
+    private Bundle mExtras;
+
+    public Intent() {
+    }
+
+    public Intent(String action) {
+        mAction = action;
+    }
+
+    public Intent(String action, Uri uri) {
+        mAction = action;
+        mData = uri;
+    }
+
+    public String getAction() {
+        return mAction;
+    }
+
+    public Intent setAction(String action) {
+        mAction = action;
+        return this;
+    }
+
+    public Uri getData() {
+        return mData;
+    }
+
+    public Intent setData(Uri data) {
+        mData = data;
+        return this;
+    }
+
+    public Intent setType(String type) {
+        mType = type;
+        return this;
+    }
+
+    public Intent setPackage(String packageName) {
+        mPackage = packageName;
+        return this;
+    }
+
+    public ComponentName getComponent() {
+        return mComponent;
+    }
+
+    public Intent setComponent(ComponentName component) {
+        mComponent = component;
+        return this;
+    }
+
+    public int getFlags() {
+        return mFlags;
+    }
+
+    public Intent setFlags(int flags) {
+        mFlags = flags;
+        return this;
+    }
+
+    public Intent addFlags(int flags) {
+        mFlags |= flags;
+        return this;
+    }
+
+    public Intent addCategory(String category) {
+        if (mCategories == null) {
+            mCategories = new LinkedHashSet<>();
+        }
+        mCategories.add(category);
+        return this;
+    }
+
+    public Intent putExtra(String name, String value) {
+        ensureExtras().putString(name, value);
+        return this;
+    }
+
+    public Intent putExtra(String name, int value) {
+        ensureExtras().putInt(name, value);
+        return this;
+    }
+
+    public Intent putExtra(String name, boolean value) {
+        ensureExtras().putBoolean(name, value);
+        return this;
+    }
+
+    public boolean hasExtra(String name) {
+        return mExtras != null && mExtras.containsKey(name);
+    }
+
+    public String getStringExtra(String name) {
+        return mExtras == null ? null : mExtras.getString(name);
+    }
+
+    public Bundle getExtras() {
+        return mExtras == null ? null : new Bundle(mExtras);
+    }
+
+    public boolean filterEquals(Intent other) {
+        return other != null
+                && objectEquals(mAction, other.mAction)
+                && objectEquals(mData, other.mData)
+                && objectEquals(mType, other.mType)
+                && objectEquals(mPackage, other.mPackage)
+                && objectEquals(mComponent, other.mComponent)
+                && objectEquals(mCategories, other.mCategories);
+    }
+
+    public int filterHashCode() {
+        int code = 0;
+        if (mAction != null) {
+            code += mAction.hashCode();
+        }
+        if (mData != null) {
+            code += mData.hashCode();
+        }
+        if (mType != null) {
+            code += mType.hashCode();
+        }
+        if (mPackage != null) {
+            code += mPackage.hashCode();
+        }
+        if (mComponent != null) {
+            code += mComponent.hashCode();
+        }
+        if (mCategories != null) {
+            code += mCategories.hashCode();
+        }
+        return code;
+    }
+
+    private static boolean objectEquals(Object x, Object y) {
+        return (x == null) ? (y == null) : x.equals(y);
+    }
+
+    private Bundle ensureExtras() {
+        if (mExtras == null) {
+            mExtras = new Bundle();
+        }
+        return mExtras;
+    }
+
+    public String toUri(int flags) {
+        StringBuilder uri = new StringBuilder(128);
+        if (mData != null) {
+            uri.append(mData.toString());
+        } else if ((flags & URI_INTENT_SCHEME) != 0) {
+            uri.append("intent:");
+        }
+
+        uri.append("#Intent;");
+        if (mAction != null) {
+            uri.append("action=").append(Uri.encode(mAction)).append(';');
+        }
+        if (mCategories != null) {
+            for (String category : mCategories) {
+                uri.append("category=").append(Uri.encode(category)).append(';');
+            }
+        }
+        if (mType != null) {
+            uri.append("type=").append(Uri.encode(mType, "/")).append(';');
+        }
+        if (mFlags != 0) {
+            uri.append("launchFlags=0x").append(Integer.toHexString(mFlags)).append(';');
+        }
+        if (mPackage != null) {
+            uri.append("package=").append(Uri.encode(mPackage)).append(';');
+        }
+        if (mComponent != null) {
+            uri.append("component=").append(Uri.encode(
+                    mComponent.flattenToShortString(), "/")).append(';');
+        }
+        if (mExtras != null) {
+            for (String key : mExtras.keySet()) {
+                Object value = mExtras.get(key);
+                char entryType = value instanceof String ? 'S'
+                        : value instanceof Boolean ? 'B'
+                        : value instanceof Integer ? 'i'
+                        : '\0';
+                if (entryType != '\0') {
+                    uri.append(entryType).append('.').append(Uri.encode(key)).append('=')
+                            .append(Uri.encode(value.toString())).append(';');
+                }
+            }
+        }
+        uri.append("end");
+        return uri.toString();
+    }
+
+    public static Intent parseUri(String uri, int flags) throws URISyntaxException {
+        int i = 0;
+        try {
+            boolean isIntentScheme = uri.startsWith("intent:");
+            i = uri.lastIndexOf("#");
+            if (i == -1) {
+                if (!isIntentScheme) {
+                    return new Intent(ACTION_VIEW, Uri.parse(uri));
+                }
+            } else if (!uri.startsWith("#Intent;", i)) {
+                return new Intent(ACTION_VIEW, Uri.parse(uri));
+            }
+
+            Intent intent = new Intent(ACTION_VIEW);
+            String data = i >= 0 ? uri.substring(0, i) : null;
+            i += "#Intent;".length();
+
+            while (!uri.startsWith("end", i)) {
+                int eq = uri.indexOf('=', i);
+                if (eq < 0) {
+                    eq = i - 1;
+                }
+                int semi = uri.indexOf(';', i);
+                String value = eq < semi ? Uri.decode(uri.substring(eq + 1, semi)) : "";
+
+                if (uri.startsWith("action=", i)) {
+                    intent.setAction(value);
+                } else if (uri.startsWith("category=", i)) {
+                    intent.addCategory(value);
+                } else if (uri.startsWith("type=", i)) {
+                    intent.mType = value;
+                } else if (uri.startsWith("launchFlags=", i)) {
+                    intent.mFlags = Integer.decode(value);
+                } else if (uri.startsWith("package=", i)) {
+                    intent.mPackage = value;
+                } else if (uri.startsWith("component=", i)) {
+                    intent.mComponent = ComponentName.unflattenFromString(value);
+                } else {
+                    String key = Uri.decode(uri.substring(i + 2, eq));
+                    if (uri.startsWith("S.", i)) {
+                        intent.ensureExtras().putString(key, value);
+                    } else if (uri.startsWith("B.", i)) {
+                        intent.ensureExtras().putBoolean(key, Boolean.parseBoolean(value));
+                    } else if (uri.startsWith("i.", i)) {
+                        intent.ensureExtras().putInt(key, Integer.parseInt(value));
+                    } else {
+                        throw new URISyntaxException(uri, "unknown EXTRA type", i);
+                    }
+                }
+
+                i = semi + 1;
+            }
+
+            if (data != null && data.length() > 0) {
+                if (data.startsWith("intent:")) {
+                    data = data.substring(7);
+                }
+                if (data.length() > 0) {
+                    intent.mData = Uri.parse(data);
+                }
+            }
+            return intent;
+
+        } catch (IndexOutOfBoundsException e) {
+            throw new URISyntaxException(uri, "illegal Intent URI format", i);
+        }
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel out, int flags) {
+        out.writeString(mAction);
+        out.writeString(mData == null ? null : mData.toString());
+        out.writeString(mType);
+        out.writeInt(mFlags);
+        out.writeString(mPackage);
+        ComponentName.writeToParcel(mComponent, out);
+        out.writeInt(0); // source bounds
+        if (mCategories != null) {
+            out.writeInt(mCategories.size());
+            for (String category : mCategories) {
+                out.writeString(category);
+            }
+        } else {
+            out.writeInt(0);
+        }
+        out.writeInt(0); // selector
+        out.writeInt(0); // clip data
+        out.writeInt(-2); // content user hint
+        if (mExtras != null) {
+            out.writeInt(1);
+            mExtras.writeToParcel(out);
+        } else {
+            out.writeInt(-1);
+        }
+    }
+
+    public void readFromParcel(Parcel in) {
+        mAction = in.readString();
+        String data = in.readString();
+        mData = data == null ? null : Uri.parse(data);
+        mType = in.readString();
+        mFlags = in.readInt();
+        mPackage = in.readString();
+        mComponent = ComponentName.readFromParcel(in);
+        in.readInt(); // source bounds
+        int categoryCount = in.readInt();
+        if (categoryCount > 0) {
+            mCategories = new LinkedHashSet<>();
+            for (int i = 0; i < categoryCount; i++) {
+                mCategories.add(in.readString());
+            }
+        }
+        in.readInt(); // selector
+        in.readInt(); // clip data
+        in.readInt(); // content user hint
+        if (in.readInt() >= 0) {
+            mExtras = Bundle.readFromParcel(in);
+        }
+    }
+
+    public static final Creator<Intent> CREATOR = new Creator<Intent>() {
+        public Intent createFromParcel(Parcel in) {
+            Intent intent = new Intent();
+            intent.readFromParcel(in);
+            return intent;
+        }
+
+        public Intent[] newArray(int size) {
+            return new Intent[size];
+        }
+    };
+
+    @Override
+    public String toString() {
+        return "Intent { " + toUri(0) + " }";
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * JVM shadow of the framework's {@link Uri}, for benchmarks only. Only keeps the string form;
+ * {@link #encode(String, String)} and {@link #decode(String)} follow the framework's rules.
+ */
+public final class Uri {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private final String mUriString;
+
+    private Uri(String uriString) {
+        mUriString = uriString;
+    }
+
+    public static Uri parse(String uriString) {
+        if (uriString == null) {
+            throw new NullPointerException("uriString");
+        }
+        return new Uri(uriString);
+    }
+
+    public String getScheme() {
+        int colon = mUriString.indexOf(':');
+        return colon > 0 ? mUriString.substring(0, colon) : null;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Uri && mUriString.equals(((Uri) o).mUriString);
+    }
+
+    @Override
+    public int hashCode() {
+        return mUriString.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return mUriString;
+    }
+
+    public static String encode(String s) {
+        return encode(s, null);
+    }
+
+    public static String encode(String s, String allow) {
+        if (s == null) {
+            return null;
+        }
+
+        StringBuilder encoded = null;
+        int length = s.length();
+        int current = 0;
+        while (current < length) {
+            int nextToEncode = current;
+            while (nextToEncode < length && isAllowed(s.charAt(nextToEncode), allow)) {
+                nextToEncode++;
+            }
+
+            if (nextToEncode == length) {
+                if (current == 0) {
+                    return s;
+                }
+                encoded.append(s, current, length);
+                return encoded.toString();
+            }
+
+            if (encoded == null) {
+                encoded = new StringBuilder();
+            }
+            if (nextToEncode > current) {
+                encoded.append(s, current, nextToEncode);
+            }
+
+            current = nextToEncode;
+            int nextAllowed = current + 1;
+            while (nextAllowed < length && !isAllowed(s.charAt(nextAllowed), allow)) {
+                nextAllowed++;
+            }
+            byte[] bytes = s.substring(current, nextAllowed).getBytes(UTF_8);
+            for (byte b : bytes) {
+                encoded.append('%')
+                        .append(HEX_DIGITS[(b & 0xf0) >> 4])
+                        .append(HEX_DIGITS[b & 0xf]);
+            }
+            current = nextAllowed;
+        }
+
+        return encoded == null ? s : encoded.toString();
+    }
+
+    private static boolean isAllowed(char c, String allow) {
+        return (c >= 'A' && c <= 'Z')
+                || (c >= 'a' && c <= 'z')
+                || (c >= '0' && c <= '9')
+                || "_-!.~'()*".indexOf(c) != -1
+                || (allow != null && allow.indexOf(c) != -1);
+    }
+
+    public static String decode(String s) {
+        if (s == null) {
+            return null;
+        }
+        if (s.indexOf('%') < 0) {
+            return s;
+        }
+
+        StringBuilder decoded = new StringBuilder(s.length());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int i = 0;
+        while (i < s.length()) {
+            char c = s.charAt(i);
+            if (c == '%' && i + 2 < s.length()) {
+                bytes.reset();
+                while (i + 2 < s.length() && s.charAt(i) == '%') {
+                    bytes.write(Integer.parseInt(s.substring(i + 1, i + 3), 16));
+                    i += 3;
+                }
+                decoded.append(new String(bytes.toByteArray(), UTF_8));
+            } else {
+                decoded.append(c);
+                i++;
+            }
+        }
+        return decoded.toString();
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * JVM shadow of the framework's {@link Bundle}, for benchmarks only. Only supports the value types
+ * that survive an {@link android.content.Intent#toUri(int)} round trip.
+ */
+public final class Bundle {
+    private static final int VAL_STRING = 0;
+    private static final int VAL_INTEGER = 1;
+    private static final int VAL_BOOLEAN = 9;
+
+    private final Map<String, Object> mMap = new LinkedHashMap<>();
+
+    public Bundle() {
+    }
+
+    public Bundle(Bundle other) {
+        mMap.putAll(other.mMap);
+    }
+
+    public int size() {
+        return mMap.size();
+    }
+
+    public boolean containsKey(String key) {
+        return mMap.containsKey(key);
+    }
+
+    public Set<String> keySet() {
+        return mMap.keySet();
+    }
+
+    public Object get(String key) {
+        return mMap.get(key);
+    }
+
+    public void putString(String key, String value) {
+        mMap.put(key, value);
+    }
+
+    public void putInt(String key, int value) {
+        mMap.put(key, value);
+    }
+
+    public void putBoolean(String key, boolean value) {
+        mMap.put(key, value);
+    }
+
+    public String getString(String key) {
+        Object o = mMap.get(key);
+        return (o instanceof String) ? (String) o : null;
+    }
+
+    public int getInt(String key) {
+        Object o = mMap.get(key);
+        return (o instanceof Integer) ? (Integer) o : 0;
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        Object o = mMap.get(key);
+        return (o instanceof Boolean) ? (Boolean) o : defaultValue;
+    }
+
+    public void writeToParcel(Parcel parcel) {
+        parcel.writeInt(mMap.size());
+        for (Map.Entry<String, Object> entry : mMap.entrySet()) {
+            parcel.writeString(entry.getKey());
+            Object value = entry.getValue();
+            if (value instanceof Integer) {
+                parcel.writeInt(VAL_INTEGER);
+                parcel.writeInt((Integer) value);
+            } else if (value instanceof Boolean) {
+                parcel.writeInt(VAL_BOOLEAN);
+                parcel.writeInt((Boolean) value ? 1 : 0);
+            } else {
+                parcel.writeInt(VAL_STRING);
+                parcel.writeString(String.valueOf(value));
+            }
+        }
+    }
+
+    public static Bundle readFromParcel(Parcel parcel) {
+        Bundle bundle = new Bundle();
+        int size = parcel.readInt();
+        for (int i = 0; i < size; i++) {
+            String key = parcel.readString();
+            switch (parcel.readInt()) {
+                case VAL_INTEGER:
+                    bundle.mMap.put(key, parcel.readInt());
+                    break;
+                case VAL_BOOLEAN:
+                    bundle.mMap.put(key, parcel.readInt() != 0);
+                    break;
+                default:
+                    bundle.mMap.put(key, parcel.readString());
+                    break;
+            }
+        }
+        return bundle;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import java.util.Arrays;
+
+/**
+ * JVM shadow of the framework's {@link Parcel}, for benchmarks only. Mirrors the native wire
+ * format closely enough for size and cost comparisons: 32-bit little-endian ints, and strings
+ * written as a UTF-16 length (-1 for null) followed by the characters and a null terminator,
+ * padded to 4 bytes.
+ */
+public final class Parcel {
+    private byte[] mData = new byte[256];
+    private int mDataSize;
+    private int mDataPosition;
+
+    private Parcel() {
+    }
+
+    public static Parcel obtain() {
+        return new Parcel();
+    }
+
+    public void recycle() {
+        mDataSize = 0;
+        mDataPosition = 0;
+    }
+
+    public int dataSize() {
+        return mDataSize;
+    }
+
+    public void setDataSize(int size) {
+        mDataSize = size;
+        mDataPosition = Math.min(mDataPosition, size);
+    }
+
+    public int dataPosition() {
+        return mDataPosition;
+    }
+
+    public void setDataPosition(int pos) {
+        mDataPosition = pos;
+    }
+
+    public byte[] marshall() {
+        return Arrays.copyOf(mData, mDataSize);
+    }
+
+    public void writeInt(int val) {
+        ensureCapacity(4);
+        mData[mDataPosition++] = (byte) val;
+        mData[mDataPosition++] = (byte) (val >> 8);
+        mData[mDataPosition++] = (byte) (val >> 16);
+        mData[mDataPosition++] = (byte) (val >> 24);
+        mDataSize = Math.max(mDataSize, mDataPosition);
+    }
+
+    public int readInt() {
+        if (mDataPosition + 4 > mDataSize) {
+            return 0;
+        }
+        int val = (mData[mDataPosition] & 0xff)
+                | (mData[mDataPosition + 1] & 0xff) << 8
+                | (mData[mDataPosition + 2] & 0xff) << 16
+                | (mData[mDataPosition + 3] & 0xff) << 24;
+        mDataPosition += 4;
+        return val;
+    }
+
+    public void writeLong(long val) {
+        writeInt((int) val);
+        writeInt((int) (val >> 32));
+    }
+
+    public long readLong() {
+        return (readInt() & 0xffffffffL) | ((long) readInt() << 32);
+    }
+
+    public void writeString(String val) {
+        if (val == null) {
+            writeInt(-1);
+            return;
+        }
+
+        int length = val.length();
+        writeInt(length);
+        int padded = ((length + 1) * 2 + 3) & ~3;
+        ensureCapacity(padded);
+        for (int i = 0; i < length; i++) {
+            char c = val.charAt(i);
+            mData[mDataPosition++] = (byte) c;
+            mData[mDataPosition++] = (byte) (c >> 8);
+        }
+        int end = mDataPosition - length * 2 + padded;
+        while (mDataPosition < end) {
+            mData[mDataPosition++] = 0;
+        }
+        mDataSize = Math.max(mDataSize, mDataPosition);
+    }
+
+    public String readString() {
+        int length = readInt();
+        if (length < 0) {
+            return null;
+        }
+
+        int padded = ((length + 1) * 2 + 3) & ~3;
+        if (mDataPosition + padded > mDataSize) {
+            return null;
+        }
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) ((mData[mDataPosition + i * 2] & 0xff)
+                    | (mData[mDataPosition + i * 2 + 1] & 0xff) << 8);
+        }
+        mDataPosition += padded;
+        return new String(chars);
+    }
+
+    private void ensureCapacity(int extra) {
+        if (mDataPosition + extra > mData.length) {
+            mData = Arrays.copyOf(mData, Math.max(mData.length * 2, mDataPosition + extra));
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * JVM shadow of the framework's {@link JsonWriter}, for benchmarks only. The framework class is
+ * derived from Gson's, so this simply delegates to it.
+ */
+public final class JsonWriter implements Closeable {
+    private final com.google.gson.stream.JsonWriter mDelegate;
+
+    public JsonWriter(Writer out) {
+        mDelegate = new com.google.gson.stream.JsonWriter(out);
+    }
+
+    public JsonWriter beginArray() throws IOException {
+        mDelegate.beginArray();
+        return this;
+    }
+
+    public JsonWriter endArray() throws IOException {
+        mDelegate.endArray();
+        return this;
+    }
+
+    public JsonWriter beginObject() throws IOException {
+        mDelegate.beginObject();
+        return this;
+    }
+
+    public JsonWriter endObject() throws IOException {
+        mDelegate.endObject();
+        return this;
+    }
+
+    public JsonWriter name(String name) throws IOException {
+        mDelegate.name(name);
+        return this;
+    }
+
+    public JsonWriter value(String value) throws IOException {
+        mDelegate.value(value);
+        return this;
+    }
+
+    public JsonWriter nullValue() throws IOException {
+        mDelegate.nullValue();
+        return this;
+    }
+
+    public JsonWriter value(boolean value) throws IOException {
+        mDelegate.value(value);
+        return this;
+    }
+
+    public JsonWriter value(double value) throws IOException {
+        mDelegate.value(value);
+        return this;
+    }
+
+    public JsonWriter value(long value) throws IOException {
+        mDelegate.value(value);
+        return this;
+    }
+
+    public void flush() throws IOException {
+        mDelegate.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mDelegate.close();
+    }
+}
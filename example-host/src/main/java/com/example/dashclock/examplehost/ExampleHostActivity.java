@@ -160,6 +160,21 @@ public class ExampleHostActivity extends Activity implements View.OnClickListene
     }
 
     private void displayMultiplexerDownloadDialog() {
+        // Looking up apps that conflict with DashClock queries the package manager, so do it off
+        // the main thread
+        DashClockHost.getOtherAppsWithReadDataExtensionsPermission(this,
+                new DashClockHost.OtherAppsCallback() {
+                    @Override
+                    public void onOtherAppsWithReadDataExtensionsPermission(
+                            List<String> packages) {
+                        if (!isFinishing()) {
+                            displayMultiplexerDownloadDialog(packages);
+                        }
+                    }
+                });
+    }
+
+    private void displayMultiplexerDownloadDialog(List<String> otherApps) {
         if (mMultiplexerDialog != null && mMultiplexerDialog.isShowing()) {
             mMultiplexerDialog.dismiss();
         }
@@ -184,8 +199,7 @@ public class ExampleHostActivity extends Activity implements View.OnClickListene
                 .setIcon(R.drawable.ic_mux_dialog_icon)
                 .setNegativeButton(android.R.string.cancel, null);
 
-        Intent muxDownloadIntent = mHost.getMultiplexerDownloadIntent();
-        if (muxDownloadIntent != null) {
+        if (otherApps.isEmpty()) {
             if (!mHost.isDashClockPresent(this)) {
                 // Install Multiplexer app
                 builder.setTitle(R.string.multiplexer_dialog_install_title);
@@ -199,8 +213,7 @@ public class ExampleHostActivity extends Activity implements View.OnClickListene
             }
         } else {
             // Not available update
-            List<String> pkgs = mHost.getOtherAppsWithReadDataExtensionsPermission(this);
-            String appNames = packagesNameListToAppNameString(this, pkgs);
+            String appNames = packagesNameListToAppNameString(this, otherApps);
             builder.setTitle(R.string.multiplexer_dialog_other_title);
             builder.setMessage(getString(R.string.multiplexer_dialog_other_message, appNames));
         }
@@ -17,7 +17,6 @@
 package com.google.android.apps.dashclock;
 
 import android.app.Service;
-import android.appwidget.AppWidgetManager;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
@@ -32,6 +31,7 @@ import android.os.IBinder;
 import android.os.Message;
 import android.os.RemoteCallbackList;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.support.v4.content.LocalBroadcastManager;
 import android.support.v4.content.WakefulBroadcastReceiver;
@@ -44,8 +44,11 @@ import com.google.android.apps.dashclock.api.ExtensionData;
 import com.google.android.apps.dashclock.api.host.ExtensionListing;
 import com.google.android.apps.dashclock.api.internal.IDataConsumerHost;
 import com.google.android.apps.dashclock.api.internal.IDataConsumerHostCallback;
-import com.google.android.apps.dashclock.render.WidgetRenderer;
+import com.google.android.apps.dashclock.render.ParcelSizeStats;
+import com.google.android.apps.dashclock.render.WidgetRenderQueue;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -53,6 +56,7 @@ import java.util.List;
 import java.util.Map;
 
 import static com.google.android.apps.dashclock.LogUtils.LOGD;
+import static com.google.android.apps.dashclock.LogUtils.LOGW;
 
 /**
  * The primary service for DashClock. This service is in charge of updating widget UI (see {@link
@@ -60,6 +64,7 @@ import static com.google.android.apps.dashclock.LogUtils.LOGD;
  */
 public class DashClockService extends Service implements
         ExtensionManager.OnChangeListener,
+        ExtensionManager.OnIconLoadedListener,
         SharedPreferences.OnSharedPreferenceChangeListener {
     private static final String TAG = LogUtils.makeLogTag(DashClockService.class);
 
@@ -104,6 +109,20 @@ public class DashClockService extends Service implements
      */
     public static final int UPDATE_COLLAPSE_TIME_MILLIS = 500;
 
+    /**
+     * The maximum amount of time a change can be held back by {@link #UPDATE_COLLAPSE_TIME_MILLIS}
+     * collapsing. Once this much time has passed since the first pending change, widgets are
+     * rendered even if further changes keep arriving.
+     */
+    public static final int UPDATE_MAX_WAIT_TIME_MILLIS = 1500;
+
+    /**
+     * How long handling a widget update may block the main thread before it's logged. Rendering
+     * itself happens on the render thread (see {@link WidgetRenderQueue}), so this only covers
+     * the bookkeeping done before handing it off.
+     */
+    private static final int MAIN_THREAD_STALL_BUDGET_MILLIS = 8;
+
     /**
      * Force all extensions to be readable by external apps.
      */
@@ -116,6 +135,16 @@ public class DashClockService extends Service implements
     private Handler mHandler = new Handler();
     private boolean mForceWorldReadable;
 
+    /**
+     * Uptime of the first change that hasn't yet been rendered, or 0 if nothing is pending. Only
+     * accessed on the main thread.
+     */
+    private long mFirstPendingChangeUptimeMillis;
+    private final LatencyHistogram mChangeToRenderLatency
+            = new LatencyHistogram("Change to render latency");
+    private final LatencyHistogram mMainThreadStall
+            = new LatencyHistogram("Main thread widget update stall");
+
     @Override
     public void onCreate() {
         super.onCreate();
@@ -126,6 +155,7 @@ public class DashClockService extends Service implements
         mRegisteredCallbacks = new HashMap<>();
         mExtensionManager = ExtensionManager.getInstance(this);
         mExtensionManager.addOnChangeListener(this);
+        mExtensionManager.addOnIconLoadedListener(this);
         mExtensionHost = new ExtensionHost(this);
 
         IntentFilter filter = new IntentFilter(ACTION_EXTENSION_UPDATE_REQUESTED);
@@ -152,7 +182,9 @@ public class DashClockService extends Service implements
         mCallbacks.kill();
 
         mUpdateHandler.removeCallbacksAndMessages(null);
+        mFirstPendingChangeUptimeMillis = 0;
         mExtensionManager.removeOnChangeListener(this);
+        mExtensionManager.removeOnIconLoadedListener(this);
 
         PreferenceManager.getDefaultSharedPreferences(this)
                 .unregisterOnSharedPreferenceChangeListener(this);
@@ -182,36 +214,79 @@ public class DashClockService extends Service implements
     private Handler mUpdateHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
+            long startUptimeMillis = SystemClock.uptimeMillis();
             LOGD(TAG, "onExtensionsChanged from "
                     + (msg.obj != null ? "extension " + msg.obj : "DashClock"));
+            final long firstChangeUptimeMillis = mFirstPendingChangeUptimeMillis;
+            mFirstPendingChangeUptimeMillis = 0;
+
             sendBroadcast(new Intent(ACTION_EXTENSIONS_CHANGED));
-            handleUpdateWidgets(new Intent());
-            WidgetRenderer.notifyDataSetChanged(DashClockService.this);
+            // Only re-render widgets whose visible content has actually changed.
+            Runnable onRendered = null;
+            if (firstChangeUptimeMillis > 0) {
+                onRendered = new Runnable() {
+                    @Override
+                    public void run() {
+                        mChangeToRenderLatency.record(
+                                SystemClock.uptimeMillis() - firstChangeUptimeMillis);
+                    }
+                };
+            }
+            WidgetRenderQueue.getInstance(DashClockService.this)
+                    .requestRender(null, true, onRendered);
+
+            recordMainThreadStall("extension change", startUptimeMillis);
         }
     };
 
+    /**
+     * Schedules a widget update, collapsing it with any other pending update. Each change pushes
+     * the update back by {@link #UPDATE_COLLAPSE_TIME_MILLIS}, but never beyond
+     * {@link #UPDATE_MAX_WAIT_TIME_MILLIS} after the first pending change, so a steady stream of
+     * changes can't starve the widgets.
+     */
+    private void scheduleWidgetUpdate(ComponentName sourceExtension) {
+        long nowUptimeMillis = SystemClock.uptimeMillis();
+        if (mFirstPendingChangeUptimeMillis == 0) {
+            mFirstPendingChangeUptimeMillis = nowUptimeMillis;
+        }
+
+        long updateUptimeMillis = Math.min(
+                nowUptimeMillis + UPDATE_COLLAPSE_TIME_MILLIS,
+                mFirstPendingChangeUptimeMillis + UPDATE_MAX_WAIT_TIME_MILLIS);
+        mUpdateHandler.removeCallbacksAndMessages(null);
+        mUpdateHandler.sendMessageAtTime(
+                mUpdateHandler.obtainMessage(0, sourceExtension),
+                updateUptimeMillis);
+    }
+
     /**
      * Updates a widget's UI.
      */
     private void handleUpdateWidgets(Intent intent) {
-        AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(this);
+        long startUptimeMillis = SystemClock.uptimeMillis();
 
-        // Either update all app widgets, or only those which were requested.
-        int appWidgetIds[];
+        // Either update all app widgets (resolved on the render thread), or only those which
+        // were requested.
+        int appWidgetIds[] = null;
         if (intent.hasExtra(EXTRA_APPWIDGET_ID)) {
             appWidgetIds = new int[]{intent.getIntExtra(EXTRA_APPWIDGET_ID, -1)};
+            LOGD(TAG, "Rendering widget with appWidgetId: " + appWidgetIds[0]);
         } else {
-            appWidgetIds = appWidgetManager.getAppWidgetIds(new ComponentName(
-                    this, WidgetProvider.class));
+            LOGD(TAG, "Rendering all widgets");
         }
 
-        StringBuilder sb = new StringBuilder();
-        for (int appWidgetId : appWidgetIds) {
-            sb.append(appWidgetId).append(" ");
-        }
-        LOGD(TAG, "Rendering widgets with appWidgetId(s): " + sb);
+        WidgetRenderQueue.getInstance(this).requestRender(appWidgetIds, false, null);
+        recordMainThreadStall("widget update request", startUptimeMillis);
+    }
 
-        WidgetRenderer.renderWidgets(this, appWidgetIds);
+    private void recordMainThreadStall(String what, long startUptimeMillis) {
+        long stallMillis = SystemClock.uptimeMillis() - startUptimeMillis;
+        mMainThreadStall.record(stallMillis);
+        if (stallMillis > MAIN_THREAD_STALL_BUDGET_MILLIS) {
+            LOGW(TAG, "Handling " + what + " blocked the main thread for " + stallMillis
+                    + "ms (budget is " + MAIN_THREAD_STALL_BUDGET_MILLIS + "ms)");
+        }
     }
 
     /**
@@ -383,14 +458,23 @@ public class DashClockService extends Service implements
         return mBinder;
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("DashClockService:");
+        mChangeToRenderLatency.dump(writer, "  ");
+        mMainThreadStall.dump(writer, "  ");
+        WidgetRenderQueue.getInstance(this).dump(writer, "  ");
+        ExtensionIconCache.getInstance(this).dump(writer, "  ");
+        ParcelSizeStats.WIDGETS.dump(writer, "  ");
+        ParcelSizeStats.WIDGET_PATCHES.dump(writer, "  ");
+        ParcelSizeStats.LIST_ROWS.dump(writer, "  ");
+    }
+
     @Override
     public void onExtensionsChanged(ComponentName sourceExtension) {
         LOGD(TAG, "onExtensionsChanged: source = " + sourceExtension);
 
-        mUpdateHandler.removeCallbacksAndMessages(null);
-        mUpdateHandler.sendMessageDelayed(
-                mUpdateHandler.obtainMessage(0, sourceExtension),
-                UPDATE_COLLAPSE_TIME_MILLIS);
+        scheduleWidgetUpdate(sourceExtension);
 
         if (sourceExtension == null) {
             broadcastExtensionListChange(
@@ -403,6 +487,12 @@ public class DashClockService extends Service implements
         }
     }
 
+    @Override
+    public void onExtensionIconLoaded(ComponentName extension) {
+        // Only the rendering is out of date; data consumers already have the new data.
+        WidgetRenderQueue.getInstance(this).requestRender(null, true, null);
+    }
+
     private void broadcastExtensionListChange(List<ExtensionListing> extensions) {
         int count = mCallbacks.beginBroadcast();
         for (int i = 0; i < count; i++) {
@@ -60,6 +60,7 @@ import static com.google.android.apps.dashclock.Utils.SECONDS_MILLIS;
 @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
 public class DaydreamService extends DreamService implements
         ExtensionManager.OnChangeListener,
+        ExtensionManager.OnIconLoadedListener,
         DashClockRenderer.OnClickListener {
     public static final String PREF_DAYDREAM_COLOR = "pref_daydream_color";
     public static final String PREF_DAYDREAM_NIGHT_MODE = "pref_daydream_night_mode";
@@ -99,6 +100,7 @@ public class DaydreamService extends DreamService implements
         super.onAttachedToWindow();
         mExtensionManager = ExtensionManager.getInstance(this);
         mExtensionManager.addOnChangeListener(this);
+        mExtensionManager.addOnIconLoadedListener(this);
 
         // Update extensions and ensure the periodic refresh is set up.
         PeriodicExtensionRefreshReceiver.updateExtensionsAndEnsurePeriodicRefresh(this);
@@ -133,6 +135,7 @@ public class DaydreamService extends DreamService implements
     public void onDetachedFromWindow() {
         super.onDetachedFromWindow();
         mExtensionManager.removeOnChangeListener(this);
+        mExtensionManager.removeOnIconLoadedListener(this);
         mExtensionManager = null;
         mHandler.removeCallbacksAndMessages(null);
         mAttached = false;
@@ -152,6 +155,11 @@ public class DaydreamService extends DreamService implements
                 DashClockService.UPDATE_COLLAPSE_TIME_MILLIS);
     }
 
+    @Override
+    public void onExtensionIconLoaded(ComponentName extension) {
+        onExtensionsChanged(extension);
+    }
+
     private Runnable mHandleExtensionsChanged = new Runnable() {
         @Override
         public void run() {
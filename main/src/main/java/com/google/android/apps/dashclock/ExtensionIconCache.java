@@ -0,0 +1,366 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.dashclock;
+
+import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks2;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Process;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.LruCache;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.android.apps.dashclock.LogUtils.LOGD;
+
+/**
+ * A process-wide, size-bounded LRU cache of decoded extension icon masks (see
+ * {@link Utils#loadExtensionIcon}), keyed by package and icon resource or URI. Icons are tinted
+ * when drawn, so each icon is stored once regardless of the colors it's shown in.
+ * Entries for a package are dropped when it's installed, changed or removed, and the cache is
+ * trimmed when the system is low on memory.
+ *
+ * <p>
+ * Icons are loaded into the cache in the background with
+ * {@link #prefetch(ComponentName, int, Uri, Runnable)}, so rendering never has to wait on
+ * decoding or on an extension's content provider. URI icons are reloaded with
+ * {@link #reload(ComponentName, int, Uri, Runnable)} when an extension publishes new data, since
+ * the content behind a URI can change.
+ *
+ * <p>
+ * Cached bitmaps are shared, so callers must not modify or recycle them.
+ */
+public class ExtensionIconCache {
+    private static final String TAG = LogUtils.makeLogTag(ExtensionIconCache.class);
+
+    private static final int MAX_SIZE_BYTES = 4 * 1024 * 1024;
+    private static final int LOADER_KEEP_ALIVE_SECONDS = 30;
+
+    // Failed loads are retried after a backoff that doubles with each failure, up to the max
+    private static final long FAILED_LOAD_INITIAL_BACKOFF_MILLIS = 30 * 1000;
+    private static final long FAILED_LOAD_MAX_BACKOFF_MILLIS = 30 * 60 * 1000;
+
+    private static ExtensionIconCache sInstance;
+
+    private final Context mContext;
+    private final LruCache<Key, Bitmap> mCache;
+
+    // Loads in progress, and what to run when they're done; guarded by mPendingLoads
+    private final Map<Key, List<Runnable>> mPendingLoads = new HashMap<>();
+    // Icons that couldn't be loaded, so they aren't retried on every render; guarded by
+    // mPendingLoads
+    private final Map<Key, FailedLoad> mFailedLoads = new HashMap<>();
+    private final ThreadPoolExecutor mLoadExecutor;
+
+    public static synchronized ExtensionIconCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ExtensionIconCache(context.getApplicationContext());
+        }
+
+        return sInstance;
+    }
+
+    private ExtensionIconCache(Context context) {
+        mContext = context;
+        int maxSize = (int) Math.min(MAX_SIZE_BYTES, Runtime.getRuntime().maxMemory() / 16);
+        mCache = new LruCache<Key, Bitmap>(maxSize) {
+            @Override
+            protected int sizeOf(Key key, Bitmap value) {
+                return value.getByteCount();
+            }
+        };
+
+        IntentFilter packageChangeIntentFilter = new IntentFilter();
+        packageChangeIntentFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageChangeIntentFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageChangeIntentFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageChangeIntentFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageChangeIntentFilter.addDataScheme("package");
+        context.registerReceiver(mPackageChangedReceiver, packageChangeIntentFilter);
+        context.registerComponentCallbacks(mComponentCallbacks);
+
+        mLoadExecutor = new ThreadPoolExecutor(1, 1,
+                LOADER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread("ExtensionIconLoader") {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        };
+                    }
+                });
+        mLoadExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public Bitmap get(String packageName, int icon, Uri iconUri) {
+        return mCache.get(new Key(packageName, icon, iconUri));
+    }
+
+    public void put(String packageName, int icon, Uri iconUri, Bitmap bitmap) {
+        mCache.put(new Key(packageName, icon, iconUri), bitmap);
+    }
+
+    /**
+     * Starts loading the given extension icon into the cache on a background thread, unless it's
+     * already cached, is already being loaded, or recently failed to load.
+     *
+     * @param onLoaded Run on the loading thread once the icon is cached (or fails to load), if
+     *                 this returns true.
+     * @return Whether or not the icon is being loaded, i.e. whether <code>onLoaded</code> will
+     * be run.
+     */
+    public boolean prefetch(ComponentName extension, int icon, Uri iconUri, Runnable onLoaded) {
+        if (iconUri == null && icon <= 0) {
+            return false;
+        }
+
+        return load(extension, new Key(extension.getPackageName(), icon, iconUri), false,
+                onLoaded);
+    }
+
+    /**
+     * Starts reloading the given extension URI icon on a background thread, replacing the cached
+     * bitmap once it's loaded, since the content behind the URI may have changed. Until then, the
+     * previously cached bitmap (if any) is still returned by {@link #get}. Does nothing if the
+     * icon is already being loaded or recently failed to load.
+     *
+     * @param onLoaded Run on the loading thread once the icon is cached (or fails to load), if
+     *                 this returns true.
+     * @return Whether or not the icon is being loaded, i.e. whether <code>onLoaded</code> will
+     * be run.
+     */
+    public boolean reload(ComponentName extension, int icon, Uri iconUri, Runnable onLoaded) {
+        if (iconUri == null) {
+            return false;
+        }
+
+        return load(extension, new Key(extension.getPackageName(), icon, iconUri), true,
+                onLoaded);
+    }
+
+    private boolean load(final ComponentName extension, final Key key, final boolean reload,
+            Runnable onLoaded) {
+        synchronized (mPendingLoads) {
+            if (!reload && mCache.get(key) != null) {
+                return false;
+            }
+
+            FailedLoad failedLoad = mFailedLoads.get(key);
+            if (failedLoad != null
+                    && SystemClock.elapsedRealtime() < failedLoad.retryElapsedMillis) {
+                return false;
+            }
+
+            List<Runnable> callbacks = mPendingLoads.get(key);
+            if (callbacks != null) {
+                if (onLoaded != null) {
+                    callbacks.add(onLoaded);
+                }
+                return true;
+            }
+
+            callbacks = new ArrayList<>();
+            if (onLoaded != null) {
+                callbacks.add(onLoaded);
+            }
+            mPendingLoads.put(key, callbacks);
+        }
+
+        mLoadExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap bitmap;
+                if (reload) {
+                    bitmap = Utils.loadExtensionIconFromUri(mContext, key.iconUri);
+                    if (bitmap != null) {
+                        mCache.put(key, bitmap);
+                    }
+                } else {
+                    bitmap = Utils.loadExtensionIcon(mContext, extension, key.icon,
+                            key.iconUri);
+                }
+                List<Runnable> callbacks;
+                synchronized (mPendingLoads) {
+                    callbacks = mPendingLoads.remove(key);
+                    if (bitmap == null) {
+                        FailedLoad failedLoad = mFailedLoads.get(key);
+                        if (failedLoad == null) {
+                            failedLoad = new FailedLoad();
+                            failedLoad.backoffMillis = FAILED_LOAD_INITIAL_BACKOFF_MILLIS;
+                            mFailedLoads.put(key, failedLoad);
+                        } else {
+                            failedLoad.backoffMillis = Math.min(failedLoad.backoffMillis * 2,
+                                    FAILED_LOAD_MAX_BACKOFF_MILLIS);
+                        }
+                        failedLoad.retryElapsedMillis = SystemClock.elapsedRealtime()
+                                + failedLoad.backoffMillis;
+                    } else {
+                        mFailedLoads.remove(key);
+                    }
+                }
+
+                if (callbacks != null) {
+                    for (Runnable callback : callbacks) {
+                        callback.run();
+                    }
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Drops all cached icons belonging to the given package.
+     */
+    public void invalidatePackage(String packageName) {
+        for (Key key : mCache.snapshot().keySet()) {
+            if (key.packageName.equals(packageName)) {
+                mCache.remove(key);
+            }
+        }
+        synchronized (mPendingLoads) {
+            Iterator<Key> it = mFailedLoads.keySet().iterator();
+            while (it.hasNext()) {
+                if (it.next().packageName.equals(packageName)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    public void invalidateAll() {
+        mCache.evictAll();
+        synchronized (mPendingLoads) {
+            mFailedLoads.clear();
+        }
+    }
+
+    public void dump(PrintWriter writer, String prefix) {
+        writer.print(prefix);
+        writer.print("Extension icon cache: entries=");
+        writer.print(mCache.snapshot().size());
+        writer.print(" size=");
+        writer.print(mCache.size() / 1024);
+        writer.print("KB/");
+        writer.print(mCache.maxSize() / 1024);
+        writer.print("KB hits=");
+        writer.print(mCache.hitCount());
+        writer.print(" misses=");
+        writer.print(mCache.missCount());
+        writer.print(" evictions=");
+        writer.print(mCache.evictionCount());
+        synchronized (mPendingLoads) {
+            writer.print(" loading=");
+            writer.print(mPendingLoads.size());
+            writer.print(" failed=");
+            writer.println(mFailedLoads.size());
+        }
+    }
+
+    private final BroadcastReceiver mPackageChangedReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Uri data = intent.getData();
+            String packageName = (data != null) ? data.getSchemeSpecificPart() : null;
+            if (!TextUtils.isEmpty(packageName)) {
+                invalidatePackage(packageName);
+            }
+        }
+    };
+
+    private final ComponentCallbacks2 mComponentCallbacks = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+            if (level >= TRIM_MEMORY_MODERATE) {
+                LOGD(TAG, "Trimming memory (level " + level + "); dropping all icons.");
+                mCache.evictAll();
+            } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+                mCache.trimToSize(mCache.maxSize() / 2);
+            }
+        }
+
+        @Override
+        public void onLowMemory() {
+            mCache.evictAll();
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+        }
+    };
+
+    private static class FailedLoad {
+        long backoffMillis;
+        long retryElapsedMillis;
+    }
+
+    private static class Key {
+        final String packageName;
+        final int icon;
+        final Uri iconUri;
+
+        Key(String packageName, int icon, Uri iconUri) {
+            this.packageName = packageName;
+            this.icon = icon;
+            this.iconUri = iconUri;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+
+            Key other = (Key) o;
+            return icon == other.icon
+                    && packageName.equals(other.packageName)
+                    && (iconUri == null ? other.iconUri == null : iconUri.equals(other.iconUri));
+        }
+
+        @Override
+        public int hashCode() {
+            int result = packageName.hashCode();
+            result = 31 * result + icon;
+            result = 31 * result + (iconUri != null ? iconUri.hashCode() : 0);
+            return result;
+        }
+    }
+}
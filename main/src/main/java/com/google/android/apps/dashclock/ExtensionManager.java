@@ -28,6 +28,8 @@ import android.os.Handler;
 import android.os.Looper;
 import android.preference.PreferenceManager;
 import android.text.TextUtils;
+import android.util.JsonReader;
+import android.util.JsonWriter;
 
 import com.google.android.apps.dashclock.api.DashClockExtension;
 import com.google.android.apps.dashclock.api.ExtensionData;
@@ -36,17 +38,17 @@ import com.google.android.apps.dashclock.gmail.GmailExtension;
 import com.google.android.apps.dashclock.nextalarm.NextAlarmExtension;
 import com.google.android.apps.dashclock.weather.WeatherExtension;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-import org.json.JSONTokener;
-
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.google.android.apps.dashclock.LogUtils.LOGD;
 import static com.google.android.apps.dashclock.LogUtils.LOGE;
@@ -61,11 +63,22 @@ public class ExtensionManager {
 
     private final Context mApplicationContext;
 
-    private final List<ComponentName> mInternalActiveExtensions = new ArrayList<>();
     private final Set<ExtensionWithData> mActiveExtensions = new HashSet<>();
 
-    private Map<ComponentName, ExtensionWithData> mExtensionInfoMap = new HashMap<>();
+    // These are only changed on the main thread, and are replaced rather than modified so that
+    // other threads (e.g. the widget render thread and binder threads) can read them without
+    // locking.
+    private volatile List<ComponentName> mInternalActiveExtensions
+            = Collections.emptyList();
+    private volatile Map<ComponentName, ExtensionWithData> mExtensionInfoMap
+            = Collections.emptyMap();
+    private volatile List<ExtensionWithData> mInternalActiveExtensionsWithData
+            = Collections.emptyList();
+
     private List<OnChangeListener> mOnChangeListeners = new ArrayList<>();
+    private List<OnIconLoadedListener> mOnIconLoadedListeners = new ArrayList<>();
+
+    private final AtomicLong mDataVersionCounter = new AtomicLong();
 
     private SharedPreferences mValuesPreferences;
     private Handler mMainThreadHandler = new Handler(Looper.getMainLooper());
@@ -176,19 +189,22 @@ public class ExtensionManager {
                     ewd.listing.componentName(cn);
                 }
                 ewd.latestData = deserializeExtensionData(ewd.listing.componentName());
+                ewd.dataVersion = mDataVersionCounter.incrementAndGet();
                 newActiveExtensions.add(ewd);
             }
         }
 
-        mExtensionInfoMap.clear();
+        Map<ComponentName, ExtensionWithData> extensionInfoMap = new HashMap<>();
         for (ExtensionWithData ewd : newActiveExtensions) {
-            mExtensionInfoMap.put(ewd.listing.componentName(), ewd);
+            extensionInfoMap.put(ewd.listing.componentName(), ewd);
         }
+        mExtensionInfoMap = Collections.unmodifiableMap(extensionInfoMap);
 
         synchronized (mActiveExtensions) {
             mActiveExtensions.clear();
             mActiveExtensions.addAll(newActiveExtensions);
         }
+        updateInternalActiveExtensionsWithData();
 
         LOGD(TAG, "List of active extensions has changed.");
         notifyOnChangeListeners(null);
@@ -202,21 +218,80 @@ public class ExtensionManager {
 
         ExtensionWithData ewd = mExtensionInfoMap.get(cn);
         if (ewd != null && !ExtensionData.equals(ewd.latestData, data)) {
+            ExtensionData previousData = ewd.latestData;
             ewd.latestData = data;
+            ewd.dataVersion = mDataVersionCounter.incrementAndGet();
             serializeExtensionData(ewd.listing.componentName(), data);
+            if (!hasSameIcon(previousData, data)) {
+                prefetchExtensionIcon(ewd.listing.componentName(), data);
+            } else if (data.iconUri() != null) {
+                // The extension may have changed the content behind the same URI along with the
+                // data, so reload it. The cached icon is shown until then.
+                ExtensionIconCache.getInstance(mApplicationContext).reload(
+                        cn, data.icon(), data.iconUri(), newIconLoadedCallback(cn));
+            }
             notifyOnChangeListeners(ewd.listing.componentName());
             return true;
         }
         return false;
     }
 
+    private static boolean hasSameIcon(ExtensionData a, ExtensionData b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+
+        return a.icon() == b.icon()
+                && (a.iconUri() == null ? b.iconUri() == null : a.iconUri().equals(b.iconUri()));
+    }
+
+    /**
+     * Starts loading the icon of the given extension data into {@link ExtensionIconCache} in the
+     * background, unless it's already cached. Once it's loaded, the extension's data version is
+     * bumped and {@link OnIconLoadedListener}s are notified, so that it gets rendered.
+     *
+     * @return Whether or not the icon is being loaded.
+     */
+    public boolean prefetchExtensionIcon(ComponentName cn, ExtensionData data) {
+        if (data == null) {
+            return false;
+        }
+
+        return ExtensionIconCache.getInstance(mApplicationContext).prefetch(
+                cn, data.icon(), data.iconUri(), newIconLoadedCallback(cn));
+    }
+
+    /**
+     * Returns a callback for {@link ExtensionIconCache} loads that bumps the given extension's
+     * data version and notifies {@link OnIconLoadedListener}s on the main thread.
+     */
+    private Runnable newIconLoadedCallback(final ComponentName cn) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                mMainThreadHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        ExtensionWithData ewd = mExtensionInfoMap.get(cn);
+                        if (ewd != null) {
+                            ewd.dataVersion = mDataVersionCounter.incrementAndGet();
+                            for (OnIconLoadedListener listener : mOnIconLoadedListeners) {
+                                listener.onExtensionIconLoaded(cn);
+                            }
+                        }
+                    }
+                });
+            }
+        };
+    }
+
     private ExtensionData deserializeExtensionData(ComponentName componentName) {
         ExtensionData extensionData = new ExtensionData();
         String val = mValuesPreferences.getString(componentName.flattenToString(), "");
         if (!TextUtils.isEmpty(val)) {
             try {
-                extensionData.deserialize((JSONObject) new JSONTokener(val).nextValue());
-            } catch (JSONException e) {
+                extensionData.deserialize(new JsonReader(new StringReader(val)));
+            } catch (IOException | IllegalStateException e) {
                 LOGE(TAG, "Error loading extension data cache for " + componentName + ".",
                         e);
             }
@@ -226,11 +301,12 @@ public class ExtensionManager {
 
     private void serializeExtensionData(ComponentName componentName, ExtensionData extensionData) {
         try {
+            StringWriter stringWriter = new StringWriter();
+            extensionData.serialize(new JsonWriter(stringWriter));
             mValuesPreferences.edit()
-                    .putString(componentName.flattenToString(),
-                            extensionData.serialize().toString())
+                    .putString(componentName.flattenToString(), stringWriter.toString())
                     .apply();
-        } catch (JSONException e) {
+        } catch (IOException e) {
             LOGE(TAG, "Error storing extension data cache for " + componentName + ".", e);
         }
     }
@@ -254,33 +330,31 @@ public class ExtensionManager {
     }
 
     public List<ExtensionWithData> getInternalActiveExtensionsWithData() {
-        // Extract the data from the all active extension cache
-        List<ComponentName> internalActiveExtensions = getInternalActiveExtensionNames();
-        ArrayList<ExtensionWithData> activeExtensions = new ArrayList<>(
-                Arrays.asList(new ExtensionWithData[internalActiveExtensions.size()]));
-        synchronized (mActiveExtensions) {
-            for (ExtensionWithData ewd : mActiveExtensions) {
-                int pos = internalActiveExtensions.indexOf(ewd.listing.componentName());
-                if (pos >= 0) {
-                    activeExtensions.set(pos, ewd);
-                }
-            }
-        }
+        return new ArrayList<>(mInternalActiveExtensionsWithData);
+    }
 
-        // Clean any null/unset data
-        int count = activeExtensions.size();
-        for (int i = count - 1; i >= 0; i--) {
-            if (activeExtensions.get(i) == null) {
-                activeExtensions.remove(i);
+    /**
+     * Rebuilds the list returned by {@link #getInternalActiveExtensionsWithData()}: the active
+     * extensions, in the order of the internal active extension list.
+     */
+    private void updateInternalActiveExtensionsWithData() {
+        Map<ComponentName, ExtensionWithData> extensionInfoMap = mExtensionInfoMap;
+        List<ExtensionWithData> activeExtensions = new ArrayList<>();
+        for (ComponentName cn : mInternalActiveExtensions) {
+            ExtensionWithData ewd = extensionInfoMap.get(cn);
+            if (ewd != null) {
+                activeExtensions.add(ewd);
             }
         }
-        return activeExtensions;
+        mInternalActiveExtensionsWithData = Collections.unmodifiableList(activeExtensions);
     }
 
     public Set<ComponentName> getActiveExtensionNames() {
         Set<ComponentName> list = new HashSet<>();
-        for (ExtensionWithData ci : mActiveExtensions) {
-            list.add(ci.listing.componentName());
+        synchronized (mActiveExtensions) {
+            for (ExtensionWithData ci : mActiveExtensions) {
+                list.add(ci.listing.componentName());
+            }
         }
         return list;
     }
@@ -373,8 +447,9 @@ public class ExtensionManager {
                 .apply();
         new BackupManager(mApplicationContext).dataChanged();
 
-        mInternalActiveExtensions.clear();
-        mInternalActiveExtensions.addAll(extensions);
+        mInternalActiveExtensions = Collections.unmodifiableList(new ArrayList<>(extensions));
+        // The set of active extensions may not change, but their order might have.
+        updateInternalActiveExtensionsWithData();
         setActiveExtensions(getActiveExtensionNames());
     }
 
@@ -403,6 +478,22 @@ public class ExtensionManager {
         mOnChangeListeners.remove(onChangeListener);
     }
 
+    /**
+     * Registers a listener to be triggered when an extension's icon has finished loading into
+     * {@link ExtensionIconCache} (see {@link #prefetchExtensionIcon}). Only of interest to
+     * renderers; the extension's data itself hasn't changed.
+     */
+    public void addOnIconLoadedListener(OnIconLoadedListener onIconLoadedListener) {
+        mOnIconLoadedListeners.add(onIconLoadedListener);
+    }
+
+    /**
+     * Removes a listener previously registered with {@link #addOnIconLoadedListener}.
+     */
+    public void removeOnIconLoadedListener(OnIconLoadedListener onIconLoadedListener) {
+        mOnIconLoadedListeners.remove(onIconLoadedListener);
+    }
+
     private void notifyOnChangeListeners(final ComponentName sourceExtension) {
         mMainThreadHandler.post(new Runnable() {
             @Override
@@ -422,8 +513,20 @@ public class ExtensionManager {
         void onExtensionsChanged(ComponentName sourceExtension);
     }
 
+    public interface OnIconLoadedListener {
+        void onExtensionIconLoaded(ComponentName extension);
+    }
+
     public static class ExtensionWithData {
         public ExtensionListing listing;
-        public ExtensionData latestData;
+        public volatile ExtensionData latestData;
+
+        /**
+         * Changes every time {@link #latestData} changes, and is unique across all extensions, so
+         * it can be used to cheaply tell whether rendered data is out of date. It's written after
+         * {@link #latestData}, so readers on other threads (e.g. the widget render thread) that
+         * read it first see data at least as new as the version.
+         */
+        public volatile long dataVersion;
     }
 }
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.dashclock;
+
+import java.io.PrintWriter;
+
+/**
+ * A tiny fixed-bucket histogram of latencies (in milliseconds), used for diagnostics output
+ * (e.g. <code>adb shell dumpsys activity service DashClockService</code>).
+ */
+public class LatencyHistogram {
+    private static final long[] BUCKET_UPPER_BOUNDS_MILLIS = {
+            16, 32, 64, 125, 250, 500, 750, 1000, 2000, 4000, Long.MAX_VALUE,
+    };
+
+    private final String mName;
+    private final long[] mCounts = new long[BUCKET_UPPER_BOUNDS_MILLIS.length];
+    private long mTotalCount;
+    private long mTotalMillis;
+    private long mMaxMillis;
+
+    public LatencyHistogram(String name) {
+        mName = name;
+    }
+
+    public synchronized void record(long millis) {
+        if (millis < 0) {
+            millis = 0;
+        }
+
+        for (int i = 0; i < BUCKET_UPPER_BOUNDS_MILLIS.length; i++) {
+            if (millis <= BUCKET_UPPER_BOUNDS_MILLIS[i]) {
+                ++mCounts[i];
+                break;
+            }
+        }
+
+        ++mTotalCount;
+        mTotalMillis += millis;
+        mMaxMillis = Math.max(mMaxMillis, millis);
+    }
+
+    public synchronized void dump(PrintWriter writer, String prefix) {
+        writer.print(prefix);
+        writer.print(mName);
+        writer.print(": count=");
+        writer.print(mTotalCount);
+        writer.print(" avg=");
+        writer.print(mTotalCount > 0 ? (mTotalMillis / mTotalCount) : 0);
+        writer.print("ms max=");
+        writer.print(mMaxMillis);
+        writer.println("ms");
+
+        for (int i = 0; i < BUCKET_UPPER_BOUNDS_MILLIS.length; i++) {
+            if (mCounts[i] == 0) {
+                continue;
+            }
+
+            writer.print(prefix);
+            writer.print("  ");
+            writer.print(BUCKET_UPPER_BOUNDS_MILLIS[i] == Long.MAX_VALUE
+                    ? ">" + BUCKET_UPPER_BOUNDS_MILLIS[i - 1]
+                    : "<=" + BUCKET_UPPER_BOUNDS_MILLIS[i]);
+            writer.print("ms: ");
+            writer.println(mCounts[i]);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.dashclock;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+
+import com.google.android.apps.dashclock.configuration.AppChooserPreference;
+import com.google.android.apps.dashclock.nextalarm.NextAlarmExtension;
+import com.google.android.apps.dashclock.render.DashClockRenderer;
+
+import static com.google.android.apps.dashclock.LogUtils.LOGD;
+
+/**
+ * A process-wide cache of the resolved clock and alarm shortcut intents (the user's chosen
+ * shortcut, or the default clock/alarms app; see {@link Utils#getDefaultClockIntent} and
+ * {@link Utils#getDefaultAlarmsIntent}), so that rendering and alarm updates don't have to parse
+ * preferences or probe the package manager every time. The cache is cleared when a package is
+ * installed, changed or removed, or when either shortcut preference changes.
+ */
+public class ShortcutIntentCache {
+    private static final String TAG = LogUtils.makeLogTag(ShortcutIntentCache.class);
+
+    private static ShortcutIntentCache sInstance;
+
+    private final Context mContext;
+
+    // Guarded by this
+    private boolean mClockIntentResolved;
+    private Intent mClockIntent;
+    private boolean mAlarmsIntentResolved;
+    private Intent mAlarmsIntent;
+
+    public static synchronized ShortcutIntentCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ShortcutIntentCache(context.getApplicationContext());
+        }
+
+        return sInstance;
+    }
+
+    private ShortcutIntentCache(Context context) {
+        mContext = context;
+
+        IntentFilter packageChangeIntentFilter = new IntentFilter();
+        packageChangeIntentFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageChangeIntentFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageChangeIntentFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageChangeIntentFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageChangeIntentFilter.addDataScheme("package");
+        context.registerReceiver(mPackageChangedReceiver, packageChangeIntentFilter);
+
+        PreferenceManager.getDefaultSharedPreferences(context)
+                .registerOnSharedPreferenceChangeListener(mPrefChangeListener);
+    }
+
+    /**
+     * Returns the intent to launch when the clock is tapped, or null if there is none.
+     */
+    public synchronized Intent getClockIntent() {
+        if (!mClockIntentResolved) {
+            SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(mContext);
+            Intent intent = AppChooserPreference.getIntentValue(
+                    sp.getString(DashClockRenderer.PREF_CLOCK_SHORTCUT, null), null);
+            mClockIntent = (intent != null) ? intent : Utils.getDefaultClockIntent(mContext);
+            mClockIntentResolved = true;
+        }
+
+        return (mClockIntent != null) ? new Intent(mClockIntent) : null;
+    }
+
+    /**
+     * Returns the intent to launch when the next alarm is tapped, or null if there is none.
+     */
+    public synchronized Intent getAlarmsIntent() {
+        if (!mAlarmsIntentResolved) {
+            SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(mContext);
+            Intent intent = AppChooserPreference.getIntentValue(
+                    sp.getString(NextAlarmExtension.PREF_ALARM_SHORTCUT, null), null);
+            mAlarmsIntent = (intent != null) ? intent : Utils.getDefaultAlarmsIntent(mContext);
+            mAlarmsIntentResolved = true;
+        }
+
+        return (mAlarmsIntent != null) ? new Intent(mAlarmsIntent) : null;
+    }
+
+    public synchronized void invalidate() {
+        mClockIntentResolved = false;
+        mClockIntent = null;
+        mAlarmsIntentResolved = false;
+        mAlarmsIntent = null;
+    }
+
+    private final BroadcastReceiver mPackageChangedReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            LOGD(TAG, "Package changed; clearing shortcut intents.");
+            invalidate();
+        }
+    };
+
+    private final SharedPreferences.OnSharedPreferenceChangeListener mPrefChangeListener
+            = new SharedPreferences.OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences sp, String key) {
+            if (DashClockRenderer.PREF_CLOCK_SHORTCUT.equals(key)) {
+                synchronized (ShortcutIntentCache.this) {
+                    mClockIntentResolved = false;
+                    mClockIntent = null;
+                }
+            } else if (NextAlarmExtension.PREF_ALARM_SHORTCUT.equals(key)) {
+                synchronized (ShortcutIntentCache.this) {
+                    mAlarmsIntentResolved = false;
+                    mAlarmsIntent = null;
+                }
+            }
+        }
+    };
+}
@@ -212,37 +212,70 @@ public class Utils {
         }
     }
 
-    public static Bitmap flattenExtensionIcon(Drawable baseIcon, int color) {
+    /**
+     * Flattens the given icon into an {@link Bitmap.Config#ALPHA_8} mask, which takes a quarter
+     * of the memory of a tinted ARGB copy and can be tinted in any color when drawn (e.g. with
+     * {@link android.widget.ImageView#setColorFilter(int)}).
+     */
+    public static Bitmap flattenExtensionIcon(Drawable baseIcon) {
         if (baseIcon == null) {
             return null;
         }
 
         Bitmap outBitmap = Bitmap.createBitmap(EXTENSION_ICON_SIZE, EXTENSION_ICON_SIZE,
-                Bitmap.Config.ARGB_8888);
+                Bitmap.Config.ALPHA_8);
         Canvas canvas = new Canvas(outBitmap);
         baseIcon.setBounds(0, 0, EXTENSION_ICON_SIZE, EXTENSION_ICON_SIZE);
-        baseIcon.setColorFilter(color, PorterDuff.Mode.SRC_IN);
         baseIcon.draw(canvas);
-        baseIcon.setColorFilter(null);
         baseIcon.setCallback(null); // free up any references
         return outBitmap;
     }
 
-    public static Bitmap flattenExtensionIcon(Context context, Bitmap baseIcon, int color) {
-        return flattenExtensionIcon(new BitmapDrawable(context.getResources(), baseIcon), color);
+    public static Bitmap flattenExtensionIcon(Context context, Bitmap baseIcon) {
+        return flattenExtensionIcon(new BitmapDrawable(context.getResources(), baseIcon));
     }
 
+    /**
+     * Returns the given extension icon as an alpha mask (see
+     * {@link #flattenExtensionIcon(Drawable)}), from {@link ExtensionIconCache} if possible. Use
+     * {@link #getExtensionIconColor(Uri, int)} for the color to tint it with. The returned
+     * bitmap may be shared and must not be modified or recycled.
+     *
+     * <p>
+     * This decodes the icon on the calling thread on a cache miss, and may block on the
+     * extension's content provider; renderers should only read from the cache (see
+     * {@link ExtensionManager#prefetchExtensionIcon}).
+     */
     public static Bitmap loadExtensionIcon(Context context, ComponentName extension,
-            int icon, Uri iconUri, int color) {
-        if (iconUri != null) {
-            return loadExtensionIconFromUri(context, iconUri);
-        }
-
-        if (icon <= 0) {
+            int icon, Uri iconUri) {
+        if (iconUri == null && icon <= 0) {
             return null;
         }
 
         String packageName = extension.getPackageName();
+        ExtensionIconCache cache = ExtensionIconCache.getInstance(context);
+        Bitmap bitmap = cache.get(packageName, icon, iconUri);
+        if (bitmap == null) {
+            bitmap = (iconUri != null)
+                    ? loadExtensionIconFromUri(context, iconUri)
+                    : loadExtensionIconFromResource(context, packageName, icon);
+            if (bitmap != null) {
+                cache.put(packageName, icon, iconUri, bitmap);
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * Returns the color to tint an extension icon with when drawing it over the given foreground
+     * color. Icons loaded from a URI are always shown in white.
+     */
+    public static int getExtensionIconColor(Uri iconUri, int foregroundColor) {
+        return (iconUri != null) ? Color.WHITE : foregroundColor;
+    }
+
+    private static Bitmap loadExtensionIconFromResource(Context context, String packageName,
+            int icon) {
         try {
             Context packageContext = context.createPackageContext(packageName, 0);
             Resources packageRes = packageContext.getResources();
@@ -266,8 +299,7 @@ public class Utils {
 
             return Utils.flattenExtensionIcon(
                     context,
-                    BitmapFactory.decodeResource(packageRes, icon, options),
-                    color);
+                    BitmapFactory.decodeResource(packageRes, icon, options));
 
         } catch (PackageManager.NameNotFoundException e) {
             LOGE(TAG, "Couldn't access extension's package while loading icon data.");
@@ -277,9 +309,12 @@ public class Utils {
     }
 
     public static Bitmap loadExtensionIconFromUri(Context context, Uri iconUri) {
+        ParcelFileDescriptor pfd = null;
         try {
-            ParcelFileDescriptor pfd = context.getContentResolver()
-                    .openFileDescriptor(iconUri, "r");
+            pfd = context.getContentResolver().openFileDescriptor(iconUri, "r");
+            if (pfd == null) {
+                return null;
+            }
 
             BitmapFactory.Options options = new BitmapFactory.Options();
             options.inJustDecodeBounds = true;
@@ -300,13 +335,19 @@ public class Utils {
 
             return Utils.flattenExtensionIcon(
                     context,
-                    BitmapFactory.decodeFileDescriptor(pfd.getFileDescriptor(), null, options),
-                    0xffffffff);
+                    BitmapFactory.decodeFileDescriptor(pfd.getFileDescriptor(), null, options));
 
         } catch (IOException e) {
             LOGE(TAG, "Couldn't read icon from content URI.", e);
         } catch (SecurityException e) {
             LOGE(TAG, "Couldn't read icon from content URI.", e);
+        } finally {
+            if (pfd != null) {
+                try {
+                    pfd.close();
+                } catch (IOException ignored) {
+                }
+            }
         }
 
         return null;
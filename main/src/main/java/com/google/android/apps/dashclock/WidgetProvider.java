@@ -17,6 +17,7 @@
 package com.google.android.apps.dashclock;
 
 import com.google.android.apps.dashclock.api.DashClockExtension;
+import com.google.android.apps.dashclock.render.WidgetRenderQueue;
 
 import android.appwidget.AppWidgetManager;
 import android.appwidget.AppWidgetProvider;
@@ -83,6 +84,7 @@ public class WidgetProvider extends AppWidgetProvider {
     @Override
     public void onDeleted(Context context, int[] appWidgetIds) {
         super.onDeleted(context, appWidgetIds);
+        WidgetRenderQueue.getInstance(context).forgetWidgets(appWidgetIds);
         int[] remainingIds = AppWidgetManager.getInstance(context).getAppWidgetIds(
                 new ComponentName(context, WidgetProvider.class));
         if (remainingIds == null || remainingIds.length == 0) {
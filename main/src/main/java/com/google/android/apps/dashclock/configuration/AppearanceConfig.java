@@ -23,8 +23,14 @@ import android.preference.PreferenceManager;
 
 import com.google.android.apps.dashclock.render.DashClockRenderer;
 
+import net.nurik.roman.dashclock.R;
+
+import java.util.HashMap;
+import java.util.Map;
+
 /**
- * Helper class for working with DashClock appearance settings.
+ * Helper class for working with DashClock appearance settings. Renderers should use the
+ * pre-resolved {@link AppearanceSnapshot} instead of reading settings here.
  */
 public class AppearanceConfig {
     static final String COMPONENT_TIME = "time";
@@ -87,7 +93,42 @@ public class AppearanceConfig {
         return getLayoutByStyleName(context, COMPONENT_DATE, currentDateStyleName);
     }
 
+    /**
+     * Layouts for each component style, keyed by component and style name (including the
+     * _white/_black suffix for analog time styles), to avoid looking them up by name.
+     */
+    private static final Map<String, Integer> STYLE_LAYOUTS = new HashMap<>();
+
+    static {
+        STYLE_LAYOUTS.put(COMPONENT_TIME + "/default", R.layout.widget_include_time_style_default);
+        STYLE_LAYOUTS.put(COMPONENT_TIME + "/light", R.layout.widget_include_time_style_light);
+        STYLE_LAYOUTS.put(COMPONENT_TIME + "/alpha", R.layout.widget_include_time_style_alpha);
+        STYLE_LAYOUTS.put(COMPONENT_TIME + "/stock", R.layout.widget_include_time_style_stock);
+        STYLE_LAYOUTS.put(COMPONENT_TIME + "/condensed",
+                R.layout.widget_include_time_style_condensed);
+        STYLE_LAYOUTS.put(COMPONENT_TIME + "/big_small",
+                R.layout.widget_include_time_style_big_small);
+        STYLE_LAYOUTS.put(COMPONENT_TIME + "/analog1_white",
+                R.layout.widget_include_time_style_analog1_white);
+        STYLE_LAYOUTS.put(COMPONENT_TIME + "/analog1_black",
+                R.layout.widget_include_time_style_analog1_black);
+        STYLE_LAYOUTS.put(COMPONENT_TIME + "/analog2_white",
+                R.layout.widget_include_time_style_analog2_white);
+        STYLE_LAYOUTS.put(COMPONENT_TIME + "/analog2_black",
+                R.layout.widget_include_time_style_analog2_black);
+        STYLE_LAYOUTS.put(COMPONENT_DATE + "/default", R.layout.widget_include_date_style_default);
+        STYLE_LAYOUTS.put(COMPONENT_DATE + "/simple", R.layout.widget_include_date_style_simple);
+        STYLE_LAYOUTS.put(COMPONENT_DATE + "/condensed_bold",
+                R.layout.widget_include_date_style_condensed_bold);
+    }
+
     public static int getLayoutByStyleName(Context context, String component, String name) {
+        Integer layout = STYLE_LAYOUTS.get(component + "/" + name);
+        if (layout != null) {
+            return layout;
+        }
+
+        // Unknown style (e.g. from an older version); fall back to looking it up by name.
         return context.getResources().getIdentifier(
                 "widget_include_" + component + "_style_" + name,
                 "layout", context.getPackageName());
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.dashclock.configuration;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Color;
+import android.preference.PreferenceManager;
+
+import com.google.android.apps.dashclock.render.DashClockRenderer;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * An immutable, pre-resolved copy of the DashClock appearance settings (see
+ * {@link AppearanceConfig}), so that rendering doesn't have to read and parse preferences or
+ * look up layouts over and over. The current snapshot is rebuilt whenever an appearance
+ * preference changes.
+ */
+public final class AppearanceSnapshot {
+    private static final Set<String> APPEARANCE_PREF_KEYS = new HashSet<>(Arrays.asList(
+            AppearanceConfig.PREF_STYLE_TIME,
+            AppearanceConfig.PREF_STYLE_DATE,
+            AppearanceConfig.PREF_HIDE_SETTINGS,
+            AppearanceConfig.PREF_SETTINGS_BUTTON,
+            AppearanceConfig.PREF_AGGRESSIVE_CENTERING,
+            AppearanceConfig.PREF_HOMESCREEN_FOREGROUND_COLOR,
+            AppearanceConfig.PREF_HOMESCREEN_BACKGROUND_OPACITY,
+            AppearanceConfig.PREF_HOMESCREEN_HIDE_CLOCK,
+            AppearanceConfig.PREF_LOCKSCREEN_FOREGROUND_COLOR,
+            AppearanceConfig.PREF_LOCKSCREEN_BACKGROUND_OPACITY,
+            AppearanceConfig.PREF_LOCKSCREEN_HIDE_CLOCK));
+
+    private static volatile AppearanceSnapshot sCurrent;
+
+    // Held here since SharedPreferences only keeps weak references to its listeners
+    private static SharedPreferences.OnSharedPreferenceChangeListener sPrefChangeListener;
+
+    private final int mHomeScreenForegroundColor;
+    private final int mHomeScreenBackgroundColor;
+    private final boolean mClockHiddenOnHomeScreen;
+    private final int mLockScreenForegroundColor;
+    private final int mLockScreenBackgroundColor;
+    private final boolean mClockHiddenOnLockScreen;
+    private final boolean mAggressiveCenteringEnabled;
+    private final boolean mSettingsButtonHidden;
+    private final int mTimeLayoutWhite;
+    private final int mTimeLayoutBlack;
+    private final int mDateLayout;
+
+    /**
+     * Returns the current appearance settings.
+     */
+    public static AppearanceSnapshot get(Context context) {
+        AppearanceSnapshot snapshot = sCurrent;
+        if (snapshot != null) {
+            return snapshot;
+        }
+
+        synchronized (AppearanceSnapshot.class) {
+            if (sCurrent == null) {
+                final Context appContext = context.getApplicationContext();
+                sPrefChangeListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+                    @Override
+                    public void onSharedPreferenceChanged(SharedPreferences sp, String key) {
+                        if (APPEARANCE_PREF_KEYS.contains(key)) {
+                            sCurrent = new AppearanceSnapshot(appContext);
+                        }
+                    }
+                };
+                PreferenceManager.getDefaultSharedPreferences(appContext)
+                        .registerOnSharedPreferenceChangeListener(sPrefChangeListener);
+                sCurrent = new AppearanceSnapshot(appContext);
+            }
+            return sCurrent;
+        }
+    }
+
+    private AppearanceSnapshot(Context context) {
+        int homeScreen = DashClockRenderer.Options.TARGET_HOME_SCREEN;
+        int lockScreen = DashClockRenderer.Options.TARGET_LOCK_SCREEN;
+        mHomeScreenForegroundColor = AppearanceConfig.getForegroundColor(context, homeScreen);
+        mHomeScreenBackgroundColor = AppearanceConfig.getBackgroundColor(context, homeScreen);
+        mClockHiddenOnHomeScreen = AppearanceConfig.isClockHiddenOnHomeScreen(context);
+        mLockScreenForegroundColor = AppearanceConfig.getForegroundColor(context, lockScreen);
+        mLockScreenBackgroundColor = AppearanceConfig.getBackgroundColor(context, lockScreen);
+        mClockHiddenOnLockScreen = AppearanceConfig.isClockHiddenOnLockScreen(context);
+        mAggressiveCenteringEnabled = AppearanceConfig.isAggressiveCenteringEnabled(context);
+        mSettingsButtonHidden = AppearanceConfig.isSettingsButtonHidden(context);
+        mTimeLayoutWhite = AppearanceConfig.getCurrentTimeLayout(context, Color.WHITE);
+        mTimeLayoutBlack = AppearanceConfig.getCurrentTimeLayout(context, Color.BLACK);
+        mDateLayout = AppearanceConfig.getCurrentDateLayout(context);
+    }
+
+    public int getForegroundColor(int target) {
+        if (target == DashClockRenderer.Options.TARGET_HOME_SCREEN) {
+            return mHomeScreenForegroundColor;
+        } else if (target == DashClockRenderer.Options.TARGET_LOCK_SCREEN) {
+            return mLockScreenForegroundColor;
+        }
+        return AppearanceConfig.DEFAULT_WIDGET_FOREGROUND_COLOR;
+    }
+
+    public int getBackgroundColor(int target) {
+        if (target == DashClockRenderer.Options.TARGET_HOME_SCREEN) {
+            return mHomeScreenBackgroundColor;
+        } else if (target == DashClockRenderer.Options.TARGET_LOCK_SCREEN) {
+            return mLockScreenBackgroundColor;
+        }
+        // Same as AppearanceConfig.getBackgroundColor for other targets: fully transparent
+        return 0;
+    }
+
+    public boolean isClockHidden(int target) {
+        return (target == DashClockRenderer.Options.TARGET_HOME_SCREEN && mClockHiddenOnHomeScreen)
+                || (target == DashClockRenderer.Options.TARGET_LOCK_SCREEN
+                        && mClockHiddenOnLockScreen);
+    }
+
+    public boolean isAggressiveCenteringEnabled() {
+        return mAggressiveCenteringEnabled;
+    }
+
+    public boolean isSettingsButtonHidden() {
+        return mSettingsButtonHidden;
+    }
+
+    public int getTimeLayout(int foregroundColor) {
+        return (foregroundColor == Color.BLACK) ? mTimeLayoutBlack : mTimeLayoutWhite;
+    }
+
+    public int getDateLayout() {
+        return mDateLayout;
+    }
+}
@@ -29,6 +29,7 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
+import android.graphics.PorterDuff;
 import android.graphics.drawable.BitmapDrawable;
 import android.net.Uri;
 import android.os.Bundle;
@@ -48,6 +49,7 @@ import android.widget.PopupMenu;
 import android.widget.TextView;
 
 import com.google.android.apps.dashclock.DashClockService;
+import com.google.android.apps.dashclock.ExtensionIconCache;
 import com.google.android.apps.dashclock.ExtensionManager;
 import com.google.android.apps.dashclock.ExtensionSettingActivityProxy;
 import com.google.android.apps.dashclock.Utils;
@@ -91,6 +93,12 @@ public class ConfigureExtensionsFragment extends Fragment implements
     private BroadcastReceiver mPackageChangedReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
+            // This may run before the icon cache's own receiver, so make sure icons for the
+            // package are reloaded.
+            String packageName = intent.getData().getSchemeSpecificPart();
+            if (!TextUtils.isEmpty(packageName)) {
+                ExtensionIconCache.getInstance(context).invalidatePackage(packageName);
+            }
             repopulateAvailableExtensions();
         }
     };
@@ -250,8 +258,11 @@ public class ConfigureExtensionsFragment extends Fragment implements
 
             if (listing.icon() != 0) {
                 Bitmap icon = Utils.loadExtensionIcon(getActivity(), extension,
-                        listing.icon(), null, res.getColor(R.color.extension_item_color));
-                mExtensionIcons.put(extension, new BitmapDrawable(res, icon));
+                        listing.icon(), null);
+                BitmapDrawable iconDrawable = new BitmapDrawable(res, icon);
+                iconDrawable.setColorFilter(res.getColor(R.color.extension_item_color),
+                        PorterDuff.Mode.SRC_ATOP);
+                mExtensionIcons.put(extension, iconDrawable);
             }
 
             if (selectedExtensions.contains(listing.componentName())) {
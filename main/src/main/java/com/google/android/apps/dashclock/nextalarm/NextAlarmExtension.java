@@ -17,10 +17,9 @@
 package com.google.android.apps.dashclock.nextalarm;
 
 import com.google.android.apps.dashclock.LogUtils;
-import com.google.android.apps.dashclock.Utils;
+import com.google.android.apps.dashclock.ShortcutIntentCache;
 import com.google.android.apps.dashclock.api.DashClockExtension;
 import com.google.android.apps.dashclock.api.ExtensionData;
-import com.google.android.apps.dashclock.configuration.AppChooserPreference;
 
 import net.nurik.roman.dashclock.R;
 
@@ -30,10 +29,8 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.content.SharedPreferences;
 import android.net.Uri;
 import android.os.Build;
-import android.preference.PreferenceManager;
 import android.provider.Settings;
 import android.text.TextUtils;
 
@@ -112,12 +109,7 @@ public class NextAlarmExtension extends DashClockExtension {
             }
         }
 
-        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(this);
-        Intent alarmIntent = AppChooserPreference.getIntentValue(
-                sp.getString(PREF_ALARM_SHORTCUT, null), null);
-        if (alarmIntent == null) {
-            alarmIntent = Utils.getDefaultAlarmsIntent(this);
-        }
+        Intent alarmIntent = ShortcutIntentCache.getInstance(this).getAlarmsIntent();
 
         publishUpdate(new ExtensionData()
                 .visible(!TextUtils.isEmpty(nextAlarm))
@@ -16,24 +16,27 @@
 
 package com.google.android.apps.dashclock.render;
 
+import com.google.android.apps.dashclock.ExtensionIconCache;
 import com.google.android.apps.dashclock.ExtensionManager;
 import com.google.android.apps.dashclock.LogUtils;
+import com.google.android.apps.dashclock.ShortcutIntentCache;
 import com.google.android.apps.dashclock.Utils;
 import com.google.android.apps.dashclock.WidgetClickProxyActivity;
-import com.google.android.apps.dashclock.configuration.AppChooserPreference;
+import com.google.android.apps.dashclock.api.ExtensionData;
 import com.google.android.apps.dashclock.configuration.AppearanceConfig;
+import com.google.android.apps.dashclock.configuration.AppearanceSnapshot;
 import com.google.android.apps.dashclock.configuration.ConfigurationActivity;
 
 import net.nurik.roman.dashclock.BuildConfig;
 import net.nurik.roman.dashclock.R;
 
-import android.appwidget.AppWidgetManager;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.res.Configuration;
 import android.content.res.Resources;
-import android.graphics.drawable.BitmapDrawable;
+import android.graphics.Bitmap;
 import android.preference.PreferenceManager;
 import android.text.TextUtils;
 import android.util.TypedValue;
@@ -54,16 +57,35 @@ public abstract class DashClockRenderer {
     private static final int MAX_COLLAPSED_EXTENSIONS = 3;
     private static final int MIN_NORMAL_FONTSIZE_WIDTH_DP = 300;
 
+    // A generous estimate of the parceled size of a collapsed extension row, not counting its
+    // icon bitmap (click intent, text, and the other actions)
+    private static final int ESTIMATED_ROW_BYTES = 2 * 1024;
+
     public static final String PREF_CLOCK_SHORTCUT = "pref_clock_shortcut";
 
     protected Context mContext;
     protected ExtensionManager mExtensionManager;
 
     protected Options mOptions;
+    protected AppearanceSnapshot mAppearance;
+
+    // Counted while rendering, for getDataPatchSizeEstimate()
+    private int mEmbeddedBitmapBytes;
+    private int mRenderedRowCount;
+    private int mDataPatchSizeEstimate;
 
     protected DashClockRenderer(Context context) {
         mContext = context;
         mExtensionManager = ExtensionManager.getInstance(context);
+        mAppearance = AppearanceSnapshot.get(context);
+    }
+
+    /**
+     * Sets the appearance settings to render with. Defaults to the settings current when this
+     * renderer was created.
+     */
+    public void setAppearance(AppearanceSnapshot appearance) {
+        mAppearance = appearance;
     }
 
     public void setOptions(Options options) {
@@ -82,28 +104,14 @@ public abstract class DashClockRenderer {
         // tablets).
         boolean isTablet = res.getConfiguration().smallestScreenWidthDp >= 600;
 
-        int shadeColor = AppearanceConfig.getBackgroundColor(mContext, mOptions.target);
+        int shadeColor = mAppearance.getBackgroundColor(mOptions.target);
 
-        boolean aggressiveCentering = AppearanceConfig.isAggressiveCenteringEnabled(mContext);
+        boolean aggressiveCentering = mAppearance.isAggressiveCenteringEnabled();
 
-        int minExpandedHeight = res.getDimensionPixelSize(
-                mOptions.target == Options.TARGET_LOCK_SCREEN
-                        ? R.dimen.min_expanded_height_lock_screen
-                        : R.dimen.min_expanded_height);
-        boolean isExpanded = (mOptions.minHeightDp
-                >= minExpandedHeight / res.getDisplayMetrics().density);
+        boolean isExpanded = isExpanded();
 
         // Step 1. Load the root layout
-        // TODO: merge
-        vb.loadRootLayout(container, isExpanded
-                ? (aggressiveCentering
-                        ? R.layout.widget_main_expanded_forced_center
-                        : R.layout.widget_main_expanded)
-                : (aggressiveCentering
-                        ? (mOptions.target == Options.TARGET_LOCK_SCREEN
-                                ? R.layout.widget_main_collapsed_forced_center_lockscreen
-                                : R.layout.widget_main_collapsed_forced_center)
-                        : R.layout.widget_main_collapsed));
+        vb.loadRootLayout(container, getRootLayout(isExpanded, aggressiveCentering));
 
         // Step 2. Configure the shade, if it should exist
         vb.setViewBackgroundColor(R.id.shade, shadeColor);
@@ -111,17 +119,13 @@ public abstract class DashClockRenderer {
 
         // Step 3. Draw the basic clock face
         boolean hideSettings;
-        boolean hideClock =
-                (mOptions.target == Options.TARGET_HOME_SCREEN
-                        && AppearanceConfig.isClockHiddenOnHomeScreen(mContext))
-                || (mOptions.target == Options.TARGET_LOCK_SCREEN
-                        && AppearanceConfig.isClockHiddenOnLockScreen(mContext));
+        boolean hideClock = mAppearance.isClockHidden(mOptions.target);
         vb.setViewVisibility(R.id.clock_target, hideClock ? View.GONE : View.VISIBLE);
         if (hideClock) {
             hideSettings = true;
         } else {
             renderClockFace(vb, mOptions.foregroundColor);
-            hideSettings = AppearanceConfig.isSettingsButtonHidden(mContext);
+            hideSettings = mAppearance.isSettingsButtonHidden();
         }
 
         // Step 4. Align the clock face and settings button (if shown)
@@ -177,10 +181,7 @@ public abstract class DashClockRenderer {
                     new Intent(mContext, ConfigurationActivity.class)
                             .addFlags(Intent.FLAG_ACTIVITY_NEW_TASK
                                     | Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS));
-            vb.setImageViewBitmap(R.id.settings_button,
-                    Utils.recolorBitmap(
-                            (BitmapDrawable) res.getDrawable(R.drawable.ic_widget_action_settings),
-                            mOptions.foregroundColor));
+            vb.setImageViewColorFilter(R.id.settings_button, mOptions.foregroundColor);
         }
 
         // Step 6. Render the extensions (collapsed or expanded)
@@ -192,70 +193,204 @@ public abstract class DashClockRenderer {
 
         } else {
             // Collapsed style
-            vb.setViewVisibility(R.id.collapsed_extensions_container,
-                    activeExtensions > 0 ? View.VISIBLE : View.GONE);
-            vb.removeAllViews(R.id.collapsed_extensions_container);
-
-            // Disabled because list view can't wrap content horizontally, which breaks centering.
-//            if (mOptions.target != Options.TARGET_LOCK_SCREEN) {
-//                // On anything but the lock screen, support vertical scrolling in collapsed mode
-//                vb.addView(R.id.collapsed_extensions_container,
-//                        vb.inflateChildLayout(R.layout.widget_include_collapsed_list,
-//                                R.id.collapsed_extensions_container));
+            renderCollapsedExtensions(vb, extensions);
+        }
+
+        return vb.getRoot();
+    }
+
+    private int getRootLayout(boolean isExpanded, boolean aggressiveCentering) {
+        // TODO: merge
+        return isExpanded
+                ? (aggressiveCentering
+                        ? R.layout.widget_main_expanded_forced_center
+                        : R.layout.widget_main_expanded)
+                : (aggressiveCentering
+                        ? (mOptions.target == Options.TARGET_LOCK_SCREEN
+                                ? R.layout.widget_main_collapsed_forced_center_lockscreen
+                                : R.layout.widget_main_collapsed_forced_center)
+                        : R.layout.widget_main_collapsed);
+    }
+
+    /**
+     * Renders only the parts of the widget that depend on extension data, to be applied on top of
+     * a widget previously rendered with {@link #renderWidget(Object)} with the same skeleton key
+     * (see {@link #getSkeletonKey(List)}). Returns null if the widget is expanded, in which case
+     * all extension data is shown in the list instead.
+     */
+    public Object renderWidgetDataPatch() {
+        if (isExpanded()) {
+            return null;
+        }
+
+        mEmbeddedBitmapBytes = 0;
+        mRenderedRowCount = 0;
+        ViewBuilder vb = onCreateViewBuilder();
+        vb.loadRootLayout(null, getRootLayout(false,
+                mAppearance.isAggressiveCenteringEnabled()));
+        renderCollapsedExtensions(vb, mExtensionManager.getInternalActiveExtensionsWithData());
+        mDataPatchSizeEstimate = mRenderedRowCount * ESTIMATED_ROW_BYTES + mEmbeddedBitmapBytes;
+        return vb.getRoot();
+    }
+
+    /**
+     * Returns a rough (high) estimate of the parceled size of the views returned by the last
+     * call to {@link #renderWidgetDataPatch()}, without parceling them.
+     */
+    public int getDataPatchSizeEstimate() {
+        return mDataPatchSizeEstimate;
+    }
+
+    /**
+     * Renders the collapsed extension rows (and the ellipsis, if there are too many extensions to
+     * show) into the collapsed extensions container. This is the only part of a collapsed widget
+     * that depends on extension data; see {@link #renderWidgetDataPatch()}.
+     */
+    protected void renderCollapsedExtensions(ViewBuilder vb, List<ExtensionWithData> extensions) {
+        vb.setViewVisibility(R.id.collapsed_extensions_container,
+                extensions.size() > 0 ? View.VISIBLE : View.GONE);
+        vb.removeAllViews(R.id.collapsed_extensions_container);
+
+        // Disabled because list view can't wrap content horizontally, which breaks centering.
+//        if (mOptions.target != Options.TARGET_LOCK_SCREEN) {
+//            // On anything but the lock screen, support vertical scrolling in collapsed mode
+//            vb.addView(R.id.collapsed_extensions_container,
+//                    vb.inflateChildLayout(R.layout.widget_include_collapsed_list,
+//                            R.id.collapsed_extensions_container));
 //
-//                final Intent onClickTemplateIntent = WidgetClickProxyActivity.getTemplate(mContext);
-//                builderSetExpandedExtensionsAdapter(vb, R.id.expanded_extensions, true,
-//                        onClickTemplateIntent);
+//            final Intent onClickTemplateIntent = WidgetClickProxyActivity.getTemplate(mContext);
+//            builderSetExpandedExtensionsAdapter(vb, R.id.expanded_extensions, true,
+//                    onClickTemplateIntent);
 //
-//            } else {
-                // On the lock screen, no vertical scrolling.
-                boolean ellipsisVisible = false;
-                int slotIndex = 0;
-                for (ExtensionWithData ewd : extensions) {
-                    if (!ewd.latestData.visible()) {
-                        continue;
-                    }
-
-                    if (slotIndex >= MAX_COLLAPSED_EXTENSIONS) {
-                        ellipsisVisible = true;
-                        break;
-                    }
-
-                    vb.addView(R.id.collapsed_extensions_container,
-                            renderCollapsedExtension(null, null, false, ewd));
-
-                    ++slotIndex;
+//        } else {
+            // On the lock screen, no vertical scrolling.
+            boolean ellipsisVisible = false;
+            int slotIndex = 0;
+            for (ExtensionWithData ewd : extensions) {
+                if (!ewd.latestData.visible()) {
+                    continue;
+                }
+
+                if (slotIndex >= MAX_COLLAPSED_EXTENSIONS) {
+                    ellipsisVisible = true;
+                    break;
+                }
+
+                vb.addView(R.id.collapsed_extensions_container,
+                        renderCollapsedExtension(null, null, false, ewd));
+
+                ++slotIndex;
+            }
+
+            if (ellipsisVisible) {
+                vb.addView(R.id.collapsed_extensions_container,
+                        vb.inflateChildLayout(
+                                R.layout.widget_include_collapsed_ellipsis,
+                                R.id.collapsed_extensions_container));
+                vb.setImageViewColorFilter(R.id.collapsed_extension_ellipsis,
+                        mOptions.foregroundColor);
+            }
+//        }
+    }
+
+    /**
+     * Returns whether or not the widget should be rendered in its expanded (list) form, given the
+     * current options.
+     */
+    protected boolean isExpanded() {
+        Resources res = mContext.getResources();
+        int minExpandedHeight = res.getDimensionPixelSize(
+                mOptions.target == Options.TARGET_LOCK_SCREEN
+                        ? R.dimen.min_expanded_height_lock_screen
+                        : R.dimen.min_expanded_height);
+        return mOptions.minHeightDp >= minExpandedHeight / res.getDisplayMetrics().density;
+    }
+
+    /**
+     * Returns a key that changes whenever the output of {@link #renderWidget(Object)} would change
+     * as a result of changes to the given extensions or the current options. Appearance settings
+     * aren't included; callers should force a render when those change.
+     */
+    public String getRootContentKey(List<ExtensionWithData> extensions) {
+        boolean isExpanded = isExpanded();
+        StringBuilder sb = new StringBuilder();
+        sb.append(mOptions.target)
+                .append('/').append(mOptions.minWidthDp)
+                .append('/').append(mOptions.minHeightDp)
+                .append('/').append(mOptions.foregroundColor)
+                .append('/').append(isExpanded)
+                .append('/').append(extensions.size() > 0);
+        if (!isExpanded) {
+            // Mirrors the collapsed rendering logic in renderWidget: only the first few visible
+            // extensions, plus the ellipsis, are actually shown.
+            int slotIndex = 0;
+            for (ExtensionWithData ewd : extensions) {
+                if (!ewd.latestData.visible()) {
+                    continue;
                 }
 
-                if (ellipsisVisible) {
-                    vb.addView(R.id.collapsed_extensions_container,
-                            vb.inflateChildLayout(
-                                    R.layout.widget_include_collapsed_ellipsis,
-                                    R.id.collapsed_extensions_container));
-                    vb.setImageViewBitmap(R.id.collapsed_extension_ellipsis,
-                            Utils.recolorBitmap((BitmapDrawable)
-                                    res.getDrawable(R.drawable.collapsed_extension_ellipsis),
-                                    mOptions.foregroundColor));
+                if (slotIndex >= MAX_COLLAPSED_EXTENSIONS) {
+                    sb.append("/...");
+                    break;
                 }
-//            }
+
+                sb.append('/').append(ewd.dataVersion);
+                ++slotIndex;
+            }
         }
+        return sb.toString();
+    }
 
-        return vb.getRoot();
+    /**
+     * Returns a key that changes whenever the structure of the output of
+     * {@link #renderWidget(Object)} (everything but what {@link #renderWidgetDataPatch()}
+     * renders) would change as a result of changes to the given extensions or the current
+     * options. As with {@link #getRootContentKey(List)}, appearance settings aren't included.
+     */
+    public String getSkeletonKey(List<ExtensionWithData> extensions) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(mOptions.target)
+                .append('/').append(mOptions.minWidthDp)
+                .append('/').append(mOptions.minHeightDp)
+                .append('/').append(mOptions.foregroundColor)
+                .append('/').append(isExpanded())
+                .append('/').append(extensions.size() > 0);
+        return sb.toString();
+    }
+
+    /**
+     * Returns a key that changes whenever the expanded list rows for the given extensions would
+     * change, or null if the widget isn't expanded given the current options.
+     */
+    public String getListContentKey(List<ExtensionWithData> extensions) {
+        if (!isExpanded()) {
+            return null;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(mOptions.target)
+                .append('/').append(mOptions.foregroundColor);
+        for (ExtensionWithData ewd : extensions) {
+            if (ewd.latestData.visible()) {
+                sb.append('/').append(ewd.dataVersion);
+            }
+        }
+        return sb.toString();
     }
 
     public void renderClockFace(ViewBuilder vb, int foregroundColor) {
-        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(mContext);
         vb.removeAllViews(R.id.time_container);
         vb.addView(R.id.time_container,
                 vb.inflateChildLayout(
-                        AppearanceConfig.getCurrentTimeLayout(mContext, foregroundColor),
+                        mAppearance.getTimeLayout(foregroundColor),
                         R.id.time_container));
         vb.removeAllViews(R.id.date_container);
         vb.addView(R.id.date_container,
                 vb.inflateChildLayout(
-                        AppearanceConfig.getCurrentDateLayout(mContext),
+                        mAppearance.getDateLayout(),
                         R.id.date_container));
         if (BuildConfig.DEBUG) {
+            SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(mContext);
             if (sp.getBoolean("demomode", false)) {
                 vb.setTextClockFormat(R.id.large_time_component_1, "10:08");
                 vb.setTextClockFormat(R.id.date_component_1, "FRI, OCT 05");
@@ -290,9 +425,7 @@ public abstract class DashClockRenderer {
             vb.setTextViewColor(id, mOptions.foregroundColor);
         }
 
-        Intent clockIntent = AppChooserPreference.getIntentValue(
-                sp.getString(PREF_CLOCK_SHORTCUT, null),
-                Utils.getDefaultClockIntent(mContext));
+        Intent clockIntent = ShortcutIntentCache.getInstance(mContext).getClockIntent();
         if (clockIntent != null) {
             vb.setViewClickIntent(R.id.clock_target, clockIntent);
         }
@@ -300,6 +433,7 @@ public abstract class DashClockRenderer {
 
     public Object renderCollapsedExtension(Object container, Object convertRoot, boolean inList,
             ExtensionWithData ewd) {
+        ++mRenderedRowCount;
         ViewBuilder vb = onCreateViewBuilder();
         if (convertRoot != null) {
             vb.useRoot(convertRoot);
@@ -352,9 +486,7 @@ public abstract class DashClockRenderer {
         }
         vb.setViewContentDescription(R.id.collapsed_extension_text, statusContentDescription);
 
-        vb.setImageViewBitmap(R.id.collapsed_extension_icon,
-                Utils.loadExtensionIcon(mContext, ewd.listing.componentName(),
-                        ewd.latestData.icon(), ewd.latestData.iconUri(), mOptions.foregroundColor));
+        setExtensionIcon(vb, R.id.collapsed_extension_icon, ewd);
         vb.setViewContentDescription(R.id.collapsed_extension_icon, ewd.listing.title());
 
         Intent clickIntent = ewd.latestData.clickIntent();
@@ -398,9 +530,7 @@ public abstract class DashClockRenderer {
         vb.setTextViewText(R.id.text2, ewd.latestData.expandedBody());
         vb.setTextViewColor(R.id.text2, mOptions.foregroundColor);
 
-        vb.setImageViewBitmap(R.id.icon,
-                Utils.loadExtensionIcon(mContext, ewd.listing.componentName(),
-                        ewd.latestData.icon(), ewd.latestData.iconUri(), mOptions.foregroundColor));
+        setExtensionIcon(vb, R.id.icon, ewd);
         String contentDescription = ewd.latestData.contentDescription();
         if (TextUtils.isEmpty(contentDescription)) {
             // No specific content description provided. Just set the minimal extra content
@@ -436,6 +566,34 @@ public abstract class DashClockRenderer {
     protected abstract void builderSetExpandedExtensionsAdapter(ViewBuilder builder,
             int viewId, boolean mini, Intent onClickTemplateIntent);
 
+    private void setExtensionIcon(ViewBuilder vb, int viewId, ExtensionWithData ewd) {
+        ComponentName cn = ewd.listing.componentName();
+        ExtensionData data = ewd.latestData;
+        vb.setImageViewColorFilter(viewId,
+                Utils.getExtensionIconColor(data.iconUri(), mOptions.foregroundColor));
+
+        // Where supported, resource icons are sent by reference, which is the cheapest option.
+        // The color filter tints them the same way as the alpha masks below.
+        if (data.iconUri() == null && data.icon() > 0
+                && vb.setImageViewResource(viewId, cn.getPackageName(), data.icon())) {
+            return;
+        }
+
+        // Otherwise, only read icons from the cache; on a miss, the icon is loaded in the
+        // background and the extension rendered again once it's ready.
+        Bitmap icon = ExtensionIconCache.getInstance(mContext).get(cn.getPackageName(),
+                data.icon(), data.iconUri());
+        if (icon == null) {
+            ExtensionManager.getInstance(mContext).prefetchExtensionIcon(cn, data);
+        } else {
+            mEmbeddedBitmapBytes += icon.getByteCount();
+        }
+
+        // Icons are 8-bit alpha masks, so they're a quarter of the size of full color bitmaps
+        // when parceled into widget updates, and are tinted when drawn.
+        vb.setImageViewBitmap(viewId, icon);
+    }
+
     public static class Options {
         public static final int TARGET_HOME_SCREEN = 0;
         public static final int TARGET_LOCK_SCREEN = 1;
@@ -446,9 +604,6 @@ public abstract class DashClockRenderer {
         public int minHeightDp;
         public int foregroundColor = AppearanceConfig.DEFAULT_WIDGET_FOREGROUND_COLOR;
 
-        // Only used by WidgetRenderer
-        public int appWidgetId = AppWidgetManager.INVALID_APPWIDGET_ID; // optional
-
         // Only used by SimpleRenderer
         public boolean newTaskOnClick;
         public OnClickListener onClickListener;
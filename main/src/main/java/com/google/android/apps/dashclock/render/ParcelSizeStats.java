@@ -0,0 +1,88 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.dashclock.render;
+
+import android.os.Parcel;
+import android.widget.RemoteViews;
+
+import net.nurik.roman.dashclock.BuildConfig;
+
+import java.io.PrintWriter;
+
+/**
+ * Tracks the parceled size of the {@link RemoteViews} sent to widget hosts, used for diagnostics
+ * output (e.g. <code>adb shell dumpsys activity service DashClockService</code>). Measuring means
+ * parceling the views a second time, so in release builds only one in
+ * {@link #RELEASE_SAMPLE_INTERVAL} of them is measured.
+ */
+public class ParcelSizeStats {
+    public static final ParcelSizeStats WIDGETS = new ParcelSizeStats("Widget RemoteViews");
+    public static final ParcelSizeStats WIDGET_PATCHES
+            = new ParcelSizeStats("Widget partial RemoteViews");
+    public static final ParcelSizeStats LIST_ROWS = new ParcelSizeStats("List row RemoteViews");
+
+    private static final int RELEASE_SAMPLE_INTERVAL = 16;
+
+    private final String mName;
+    private int mSampleCounter;
+    private long mCount;
+    private long mTotalBytes;
+    private long mMaxBytes;
+
+    private ParcelSizeStats(String name) {
+        mName = name;
+    }
+
+    /**
+     * Records the parceled size of the given views, if they're sampled.
+     */
+    public void record(RemoteViews views) {
+        if (!BuildConfig.DEBUG) {
+            synchronized (this) {
+                if (mSampleCounter++ % RELEASE_SAMPLE_INTERVAL != 0) {
+                    return;
+                }
+            }
+        }
+
+        Parcel parcel = Parcel.obtain();
+        try {
+            views.writeToParcel(parcel, 0);
+            record(parcel.dataSize());
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private synchronized void record(int bytes) {
+        ++mCount;
+        mTotalBytes += bytes;
+        mMaxBytes = Math.max(mMaxBytes, bytes);
+    }
+
+    public synchronized void dump(PrintWriter writer, String prefix) {
+        writer.print(prefix);
+        writer.print(mName);
+        writer.print(BuildConfig.DEBUG ? ": count=" : ": sampled count=");
+        writer.print(mCount);
+        writer.print(" avg=");
+        writer.print(mCount > 0 ? (mTotalBytes / mCount) : 0);
+        writer.print("B max=");
+        writer.print(mMaxBytes);
+        writer.println("B");
+    }
+}
@@ -74,6 +74,21 @@ public class SimpleViewBuilder implements ViewBuilder {
         }
     }
 
+    @Override
+    public boolean setImageViewResource(int viewId, String packageName, int resId) {
+        // These views are drawn in this process, where the cached icon is cheaper than loading
+        // the drawable on the UI thread.
+        return false;
+    }
+
+    @Override
+    public void setImageViewColorFilter(int viewId, int color) {
+        try {
+            ((ImageView) mRootView.findViewById(viewId)).setColorFilter(color);
+        } catch (NullPointerException ignored) {
+        }
+    }
+
     @Override
     public void setViewContentDescription(int viewId, String contentDescription) {
         try {
@@ -40,6 +40,13 @@ public interface ViewBuilder {
     void setTextViewMaxLines(int viewId, int maxLines);
     void setTextClockFormat(int viewId, CharSequence format);
     void setImageViewBitmap(int viewId, Bitmap bitmap);
+
+    /**
+     * Sets the image to the given drawable resource of another package by reference, without
+     * loading it here. Returns false if that isn't supported, in which case nothing is set.
+     */
+    boolean setImageViewResource(int viewId, String packageName, int resId);
+    void setImageViewColorFilter(int viewId, int color);
     void setLinearLayoutGravity(int viewId, int gravity);
     void addView(int viewId, Object child);
     void removeAllViews(int viewId);
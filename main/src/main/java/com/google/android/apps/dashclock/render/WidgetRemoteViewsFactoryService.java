@@ -17,17 +17,20 @@
 package com.google.android.apps.dashclock.render;
 
 import com.google.android.apps.dashclock.*;
-import com.google.android.apps.dashclock.configuration.AppearanceConfig;
+import com.google.android.apps.dashclock.configuration.AppearanceSnapshot;
 
 import net.nurik.roman.dashclock.R;
 
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.widget.RemoteViews;
 import android.widget.RemoteViewsService;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import static com.google.android.apps.dashclock.LogUtils.LOGD;
 
@@ -67,6 +70,14 @@ public class WidgetRemoteViewsFactoryService extends RemoteViewsService {
         private int mTarget;
         private boolean mIsMini;
 
+        // The render context for the current data set, set up in onDataSetChanged
+        private WidgetRenderer mRenderer;
+        private int mForegroundColor;
+
+        // Rendered rows, by extension; only valid for the data version and foreground color they
+        // were rendered with
+        private Map<ComponentName, CachedRow> mCachedRows = new HashMap<>();
+
         public WidgetRemoveViewsFactory(Context context, int target, boolean isMini) {
             mContext = context;
             mTarget = target;
@@ -78,10 +89,35 @@ public class WidgetRemoteViewsFactoryService extends RemoteViewsService {
         }
 
         public void onDestroy() {
+            mCachedRows.clear();
         }
 
         public void onDataSetChanged() {
             mVisibleExtensions = mExtensionManager.getVisibleExtensionsWithData();
+
+            AppearanceSnapshot appearance = AppearanceSnapshot.get(mContext);
+            int foregroundColor = appearance.getForegroundColor(mTarget);
+            if (mRenderer == null || foregroundColor != mForegroundColor) {
+                mRenderer = new WidgetRenderer(mContext);
+                DashClockRenderer.Options options = new DashClockRenderer.Options();
+                options.target = mTarget;
+                options.foregroundColor = foregroundColor;
+                mRenderer.setOptions(options);
+                mRenderer.setAppearance(appearance);
+                mForegroundColor = foregroundColor;
+                mCachedRows.clear();
+            }
+
+            // Drop rows for extensions that are gone or whose data has changed.
+            Map<ComponentName, CachedRow> cachedRows = new HashMap<>();
+            for (ExtensionManager.ExtensionWithData ewd : mVisibleExtensions) {
+                ComponentName cn = ewd.listing.componentName();
+                CachedRow row = mCachedRows.get(cn);
+                if (row != null && row.dataVersion == ewd.dataVersion) {
+                    cachedRows.put(cn, row);
+                }
+            }
+            mCachedRows = cachedRows;
         }
 
         public int getViewTypeCount() {
@@ -106,21 +142,33 @@ public class WidgetRemoteViewsFactoryService extends RemoteViewsService {
         }
 
         public RemoteViews getViewAt(int position) {
+            if (mRenderer == null) {
+                // onDataSetChanged hasn't been called yet
+                onDataSetChanged();
+            }
+
             if (position >= mVisibleExtensions.size()) {
                 // TODO: trap this better
                 // See note on synchronization below.
                 return null;
             }
 
-            WidgetRenderer renderer = new WidgetRenderer(mContext);
-            DashClockRenderer.Options options = new DashClockRenderer.Options();
-            options.target = mTarget;
-            options.foregroundColor = AppearanceConfig.getForegroundColor(mContext, mTarget);
-            renderer.setOptions(options);
             ExtensionManager.ExtensionWithData ewd = getItemAtProtected(position);
-            return (RemoteViews) (mIsMini
-                    ? renderer.renderCollapsedExtension(null, null, true, ewd)
-                    : renderer.renderExpandedExtension(null, null, true, ewd));
+            ComponentName cn = ewd.listing.componentName();
+            // Read the version before rendering, so the row is never cached under a newer
+            // version than the data it shows.
+            long dataVersion = ewd.dataVersion;
+            CachedRow row = mCachedRows.get(cn);
+            if (row != null && row.dataVersion == dataVersion) {
+                return row.views;
+            }
+
+            RemoteViews views = (RemoteViews) (mIsMini
+                    ? mRenderer.renderCollapsedExtension(null, null, true, ewd)
+                    : mRenderer.renderExpandedExtension(null, null, true, ewd));
+            ParcelSizeStats.LIST_ROWS.record(views);
+            mCachedRows.put(cn, new CachedRow(dataVersion, views));
+            return views;
         }
 
         public RemoteViews getLoadingView() {
@@ -129,4 +177,14 @@ public class WidgetRemoteViewsFactoryService extends RemoteViewsService {
         }
     }
 
+    private static class CachedRow {
+        final long dataVersion;
+        final RemoteViews views;
+
+        CachedRow(long dataVersion, RemoteViews views) {
+            this.dataVersion = dataVersion;
+            this.views = views;
+        }
+    }
+
 }
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.dashclock.render;
+
+import android.appwidget.AppWidgetManager;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.SparseBooleanArray;
+
+import com.google.android.apps.dashclock.LatencyHistogram;
+import com.google.android.apps.dashclock.LogUtils;
+import com.google.android.apps.dashclock.WidgetProvider;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.android.apps.dashclock.LogUtils.LOGD;
+
+/**
+ * Renders widgets (see {@link WidgetRenderer#renderWidgets(Context, int[], boolean)}) on a
+ * dedicated background thread, so that icon loading, preference reads and app widget IPCs don't
+ * block the main thread.
+ *
+ * <p>
+ * Requests are coalesced per app widget ID: if a widget is requested again before its pending
+ * render has started, only one render happens, with the latest data. Renders run one at a time,
+ * in order, so widgets never receive an older update after a newer one.
+ */
+public class WidgetRenderQueue {
+    private static final String TAG = LogUtils.makeLogTag(WidgetRenderQueue.class);
+
+    private static WidgetRenderQueue sInstance;
+
+    private final Context mContext;
+    private final Handler mRenderHandler;
+
+    // Pending requests; guarded by mLock
+    private final Object mLock = new Object();
+    private boolean mRenderScheduled;
+    private boolean mAllPending;
+    private boolean mAllPendingOnlyIfChanged;
+    private final SparseBooleanArray mPendingOnlyIfChanged = new SparseBooleanArray();
+    private final List<Runnable> mPendingCallbacks = new ArrayList<>();
+
+    private final LatencyHistogram mRenderTime = new LatencyHistogram("Widget render time");
+
+    public static synchronized WidgetRenderQueue getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new WidgetRenderQueue(context.getApplicationContext());
+        }
+
+        return sInstance;
+    }
+
+    private WidgetRenderQueue(Context context) {
+        mContext = context;
+        HandlerThread thread = new HandlerThread("WidgetRenderer");
+        thread.start();
+        mRenderHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Requests that the given app widget IDs (or all widgets, if null) be rendered. If
+     * <code>onlyIfChanged</code> is true, widgets are only updated if the extension data they show
+     * has changed (see {@link WidgetRenderer#renderWidgets(Context, int[], boolean)}); this is
+     * overridden by any pending request for the same widget without it.
+     *
+     * @param onRendered Optional; run on the render thread once the requested widgets have been
+     *                   rendered.
+     */
+    public void requestRender(int[] appWidgetIds, boolean onlyIfChanged, Runnable onRendered) {
+        synchronized (mLock) {
+            if (appWidgetIds == null) {
+                mAllPendingOnlyIfChanged = (!mAllPending || mAllPendingOnlyIfChanged)
+                        && onlyIfChanged;
+                mAllPending = true;
+            } else {
+                for (int appWidgetId : appWidgetIds) {
+                    mPendingOnlyIfChanged.put(appWidgetId,
+                            mPendingOnlyIfChanged.get(appWidgetId, true) && onlyIfChanged);
+                }
+            }
+
+            if (onRendered != null) {
+                mPendingCallbacks.add(onRendered);
+            }
+
+            if (mRenderScheduled) {
+                return;
+            }
+            mRenderScheduled = true;
+        }
+
+        mRenderHandler.post(mRenderRunnable);
+    }
+
+    /**
+     * Drops any pending renders and the render state for the given (deleted) app widget IDs.
+     */
+    public void forgetWidgets(final int[] appWidgetIds) {
+        synchronized (mLock) {
+            for (int appWidgetId : appWidgetIds) {
+                mPendingOnlyIfChanged.delete(appWidgetId);
+            }
+        }
+
+        mRenderHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                WidgetRenderer.forgetWidgets(appWidgetIds);
+            }
+        });
+    }
+
+    public void dump(PrintWriter writer, String prefix) {
+        mRenderTime.dump(writer, prefix);
+    }
+
+    private final Runnable mRenderRunnable = new Runnable() {
+        @Override
+        public void run() {
+            boolean all;
+            boolean allOnlyIfChanged;
+            SparseBooleanArray pendingOnlyIfChanged;
+            List<Runnable> callbacks;
+            synchronized (mLock) {
+                mRenderScheduled = false;
+                all = mAllPending;
+                allOnlyIfChanged = mAllPendingOnlyIfChanged;
+                pendingOnlyIfChanged = mPendingOnlyIfChanged.clone();
+                callbacks = new ArrayList<>(mPendingCallbacks);
+                mAllPending = false;
+                mPendingOnlyIfChanged.clear();
+                mPendingCallbacks.clear();
+            }
+
+            long startUptimeMillis = SystemClock.uptimeMillis();
+            if (all) {
+                int[] allAppWidgetIds = AppWidgetManager.getInstance(mContext).getAppWidgetIds(
+                        new ComponentName(mContext, WidgetProvider.class));
+                if (allAppWidgetIds != null) {
+                    for (int appWidgetId : allAppWidgetIds) {
+                        pendingOnlyIfChanged.put(appWidgetId,
+                                pendingOnlyIfChanged.get(appWidgetId, true) && allOnlyIfChanged);
+                    }
+                }
+            }
+
+            List<Integer> changedIds = new ArrayList<>();
+            List<Integer> forcedIds = new ArrayList<>();
+            for (int i = 0; i < pendingOnlyIfChanged.size(); i++) {
+                if (pendingOnlyIfChanged.valueAt(i)) {
+                    changedIds.add(pendingOnlyIfChanged.keyAt(i));
+                } else {
+                    forcedIds.add(pendingOnlyIfChanged.keyAt(i));
+                }
+            }
+
+            if (!forcedIds.isEmpty()) {
+                WidgetRenderer.renderWidgets(mContext, toIntArray(forcedIds), false);
+            }
+            if (!changedIds.isEmpty()) {
+                WidgetRenderer.renderWidgets(mContext, toIntArray(changedIds), true);
+            }
+
+            if (!forcedIds.isEmpty() || !changedIds.isEmpty()) {
+                long elapsedMillis = SystemClock.uptimeMillis() - startUptimeMillis;
+                mRenderTime.record(elapsedMillis);
+                LOGD(TAG, "Rendered " + forcedIds.size() + " widget(s), checked "
+                        + changedIds.size() + " for changes, in " + elapsedMillis + "ms");
+            }
+
+            for (Runnable callback : callbacks) {
+                callback.run();
+            }
+        }
+    };
+
+    private static int[] toIntArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+}
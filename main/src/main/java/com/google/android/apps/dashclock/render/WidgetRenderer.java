@@ -21,21 +21,37 @@ import net.nurik.roman.dashclock.R;
 import android.app.PendingIntent;
 import android.appwidget.AppWidgetManager;
 import android.appwidget.AppWidgetProviderInfo;
-import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
+import android.text.TextUtils;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
 import android.widget.RemoteViews;
 
-import com.google.android.apps.dashclock.WidgetProvider;
-import com.google.android.apps.dashclock.configuration.AppearanceConfig;
+import com.google.android.apps.dashclock.LogUtils;
+import com.google.android.apps.dashclock.configuration.AppearanceSnapshot;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.android.apps.dashclock.ExtensionManager.ExtensionWithData;
+import static com.google.android.apps.dashclock.LogUtils.LOGD;
 
 /**
  * Class in charge of rendering DashClock to {@link android.widget.RemoteViews},
  * along with {@link WidgetRemoteViewsFactoryService}.
  */
 public class WidgetRenderer extends DashClockRenderer {
+    private static final String TAG = LogUtils.makeLogTag(WidgetRenderer.class);
+
+    // The list set up by the last call to builderSetExpandedExtensionsAdapter, if any
+    private int mRemoteAdapterViewId;
+    private boolean mRemoteAdapterMini;
+
     protected WidgetRenderer(Context context) {
         super(context);
     }
@@ -46,15 +62,56 @@ public class WidgetRenderer extends DashClockRenderer {
     }
 
     /**
-     * Renders the DashClock UI to the given app widget IDs.
+     * The content keys (see {@link #getRootContentKey(List)} and {@link #getListContentKey(List)})
+     * last rendered to each app widget ID. Only accessed on the render thread (see
+     * {@link WidgetRenderQueue}).
+     */
+    private static final SparseArray<String> sRenderedRootContentKeys = new SparseArray<>();
+    private static final SparseArray<String> sRenderedListContentKeys = new SparseArray<>();
+
+    /**
+     * The skeleton keys (see {@link #getSkeletonKey(List)}) last fully rendered to each app widget
+     * ID, and an estimate of the total parceled size of the partial updates applied on top of
+     * them since (see {@link DashClockRenderer#getDataPatchSizeEstimate()}). Only accessed on the
+     * render thread.
+     */
+    private static final SparseArray<String> sRenderedSkeletonKeys = new SparseArray<>();
+    private static final SparseIntArray sPartialUpdateBytes = new SparseIntArray();
+
+    /**
+     * AppWidgetManager merges each partial update into the widget's last full RemoteViews, which
+     * it keeps and sends to the host again whenever the host (re)binds the widget. Actions that
+     * replace an earlier one are dropped in the merge, but added views and the bitmaps of every
+     * patch accumulate, so the merged views grow with each partial update. Once the partial
+     * updates since the last full update add up to this many bytes, send a full update instead,
+     * which keeps the merged views well under the 1MB binder transaction limit.
+     */
+    private static final int MAX_PARTIAL_UPDATE_BYTES = 256 * 1024;
+
+    /**
+     * Renders the DashClock UI to the given app widget IDs. Must be called on the render thread;
+     * use {@link WidgetRenderQueue} to request renders.
      */
     public static void renderWidgets(Context context, int[] appWidgetIds) {
+        renderWidgets(context, appWidgetIds, false);
+    }
+
+    /**
+     * Renders the DashClock UI to the given app widget IDs. If <code>onlyIfChanged</code> is true,
+     * widgets (and their expanded lists) are only updated if the extension data they actually
+     * show has changed since they were last rendered. This should only be used when extension data
+     * changes, not when appearance settings or widget options change.
+     */
+    public static void renderWidgets(Context context, int[] appWidgetIds, boolean onlyIfChanged) {
         final AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(context);
+        AppearanceSnapshot appearance = AppearanceSnapshot.get(context);
 
-        WidgetRenderer renderer = new WidgetRenderer(context);
+        // Group widgets that would render identically (same target, size and color), so that each
+        // group is only rendered once. The only per-widget part of the output is the remote
+        // adapter intent of expanded widgets, which is stamped in afterwards.
+        Map<String, WidgetGroup> groups = new LinkedHashMap<>();
         for (int appWidgetId : appWidgetIds) {
             Options options = new Options();
-            options.appWidgetId = appWidgetId;
             options.target = Options.TARGET_HOME_SCREEN;
             options.minWidthDp= Integer.MAX_VALUE;
             options.minHeightDp = Integer.MAX_VALUE;
@@ -68,46 +125,171 @@ public class WidgetRenderer extends DashClockRenderer {
                         widgetOptions.getInt(AppWidgetManager.OPTION_APPWIDGET_HOST_CATEGORY))
                         ? Options.TARGET_LOCK_SCREEN : Options.TARGET_HOME_SCREEN;
             }
-            options.foregroundColor = AppearanceConfig.getForegroundColor(context, options.target);
+            options.foregroundColor = appearance.getForegroundColor(options.target);
+
+            String groupKey = options.target + "/" + options.minWidthDp + "/"
+                    + options.minHeightDp + "/" + options.foregroundColor;
+            WidgetGroup group = groups.get(groupKey);
+            if (group == null) {
+                group = new WidgetGroup(options);
+                groups.put(groupKey, group);
+            }
+            group.appWidgetIds.add(appWidgetId);
+        }
+
+        WidgetRenderer renderer = new WidgetRenderer(context);
+        renderer.setAppearance(appearance);
+        List<ExtensionWithData> extensions
+                = renderer.mExtensionManager.getInternalActiveExtensionsWithData();
+        for (WidgetGroup group : groups.values()) {
+            renderer.setOptions(group.options);
+            String rootContentKey = renderer.getRootContentKey(extensions);
+            String listContentKey = renderer.getListContentKey(extensions);
+            String skeletonKey = renderer.getSkeletonKey(extensions);
+
+            // Figure out what each widget in the group needs: a full update, a partial update
+            // over its existing skeleton (see renderWidgetDataPatch), and/or a list refresh.
+            List<Integer> fullUpdateIds = new ArrayList<>();
+            List<Integer> partialUpdateIds = new ArrayList<>();
+            List<Integer> listChangedIds = new ArrayList<>();
+            for (int appWidgetId : group.appWidgetIds) {
+                if (!onlyIfChanged || !TextUtils.equals(rootContentKey,
+                        sRenderedRootContentKeys.get(appWidgetId))) {
+                    // If only extension data changed, leave the widget's skeleton (layout, clock
+                    // face, alignment) as it is and only send the parts that show extension data.
+                    if (onlyIfChanged
+                            && sPartialUpdateBytes.get(appWidgetId) < MAX_PARTIAL_UPDATE_BYTES
+                            && TextUtils.equals(skeletonKey,
+                                    sRenderedSkeletonKeys.get(appWidgetId))) {
+                        partialUpdateIds.add(appWidgetId);
+                    } else {
+                        fullUpdateIds.add(appWidgetId);
+                    }
+                }
+
+                if (!onlyIfChanged || !TextUtils.equals(listContentKey,
+                        sRenderedListContentKeys.get(appWidgetId))) {
+                    listChangedIds.add(appWidgetId);
+                }
+            }
 
-            renderer.setOptions(options);
-            appWidgetManager.updateAppWidget(appWidgetId,
-                    (RemoteViews) renderer.renderWidget(null));
+            if (!partialUpdateIds.isEmpty()) {
+                RemoteViews patch = (RemoteViews) renderer.renderWidgetDataPatch();
+                if (patch != null) {
+                    ParcelSizeStats.WIDGET_PATCHES.record(patch);
+                    appWidgetManager.partiallyUpdateAppWidget(toIntArray(partialUpdateIds), patch);
+                    int patchBytes = renderer.getDataPatchSizeEstimate();
+                    for (int appWidgetId : partialUpdateIds) {
+                        sPartialUpdateBytes.put(appWidgetId,
+                                sPartialUpdateBytes.get(appWidgetId) + patchBytes);
+                        sRenderedRootContentKeys.put(appWidgetId, rootContentKey);
+                    }
+                } else {
+                    fullUpdateIds.addAll(partialUpdateIds);
+                    partialUpdateIds.clear();
+                }
+            }
+
+            if (!fullUpdateIds.isEmpty()) {
+                renderer.mRemoteAdapterViewId = 0;
+                RemoteViews views = (RemoteViews) renderer.renderWidget(null);
+                if (renderer.mRemoteAdapterViewId == 0) {
+                    // Nothing widget-specific; send the same views to the whole group at once.
+                    ParcelSizeStats.WIDGETS.record(views);
+                    appWidgetManager.updateAppWidget(toIntArray(fullUpdateIds), views);
+                } else {
+                    for (int appWidgetId : fullUpdateIds) {
+                        RemoteViews widgetViews = views.clone();
+                        renderer.stampRemoteAdapter(widgetViews, appWidgetId);
+                        ParcelSizeStats.WIDGETS.record(widgetViews);
+                        appWidgetManager.updateAppWidget(appWidgetId, widgetViews);
+                    }
+                }
 
-            // During an update to an existing expanded widget, setRemoteAdapter does nothing,
-            // so we need to explicitly call notifyAppWidgetViewDataChanged to update data.
-            appWidgetManager.notifyAppWidgetViewDataChanged(appWidgetId,
-                    R.id.expanded_extensions);
+                for (int appWidgetId : fullUpdateIds) {
+                    sRenderedSkeletonKeys.put(appWidgetId, skeletonKey);
+                    sPartialUpdateBytes.put(appWidgetId, 0);
+                    sRenderedRootContentKeys.put(appWidgetId, rootContentKey);
+                }
+            }
+
+            if (!listChangedIds.isEmpty()) {
+                // During an update to an existing expanded widget, setRemoteAdapter does nothing,
+                // so we need to explicitly call notifyAppWidgetViewDataChanged to update data.
+                appWidgetManager.notifyAppWidgetViewDataChanged(toIntArray(listChangedIds),
+                        R.id.expanded_extensions);
+                for (int appWidgetId : listChangedIds) {
+                    sRenderedListContentKeys.put(appWidgetId, listContentKey);
+                }
+            }
+
+            LOGD(TAG, "Widget group " + group.appWidgetIds + ": rendered " + fullUpdateIds
+                    + ", patched " + partialUpdateIds + ", list notified " + listChangedIds);
         }
     }
 
-    public static void notifyDataSetChanged(Context context) {
-        AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(context);
-        int[] appWidgetIds = appWidgetManager.getAppWidgetIds(
-                new ComponentName(context, WidgetProvider.class));
-        appWidgetManager.notifyAppWidgetViewDataChanged(appWidgetIds,
-                R.id.expanded_extensions);
+    private static int[] toIntArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    /**
+     * Forgets the render state for the given (deleted) app widget IDs. Must be called on the
+     * render thread; see {@link WidgetRenderQueue#forgetWidgets(int[])}.
+     */
+    public static void forgetWidgets(int[] appWidgetIds) {
+        for (int appWidgetId : appWidgetIds) {
+            sRenderedRootContentKeys.remove(appWidgetId);
+            sRenderedListContentKeys.remove(appWidgetId);
+            sRenderedSkeletonKeys.remove(appWidgetId);
+            sPartialUpdateBytes.delete(appWidgetId);
+        }
     }
 
     @Override
     protected void builderSetExpandedExtensionsAdapter(ViewBuilder vb, int viewId,
             boolean mini, Intent clickTemplateIntent) {
-        Intent remoteAdapterIntent = new Intent(mContext, WidgetRemoteViewsFactoryService.class);
-        if (mOptions.appWidgetId != AppWidgetManager.INVALID_APPWIDGET_ID) {
-            remoteAdapterIntent.putExtra(AppWidgetManager.EXTRA_APPWIDGET_ID,
-                    mOptions.appWidgetId);
-            remoteAdapterIntent.putExtra(WidgetRemoteViewsFactoryService.EXTRA_TARGET,
-                    mOptions.target);
-            remoteAdapterIntent.putExtra(WidgetRemoteViewsFactoryService.EXTRA_IS_MINI,
-                    mini);
-        }
+        // The remote adapter intent is the only widget-specific part of the output; it's added
+        // to each widget's copy of the views in stampRemoteAdapter.
+        mRemoteAdapterViewId = viewId;
+        mRemoteAdapterMini = mini;
 
-        // TODO: is this setData call really necessary?
-        remoteAdapterIntent.setData(Uri.parse(remoteAdapterIntent.toUri(Intent.URI_INTENT_SCHEME)));
         RemoteViews root = (RemoteViews) vb.getRoot();
-        root.setRemoteAdapter(viewId, remoteAdapterIntent);
         root.setPendingIntentTemplate(viewId,
                 PendingIntent.getActivity(mContext, 0,
                         clickTemplateIntent, PendingIntent.FLAG_UPDATE_CURRENT));
     }
+
+    /**
+     * Sets the remote adapter for the given app widget ID on views rendered with
+     * {@link #renderWidget(Object)}, if they contain a list.
+     */
+    private void stampRemoteAdapter(RemoteViews views, int appWidgetId) {
+        if (mRemoteAdapterViewId == 0) {
+            return;
+        }
+
+        Intent remoteAdapterIntent = new Intent(mContext, WidgetRemoteViewsFactoryService.class);
+        remoteAdapterIntent.putExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, appWidgetId);
+        remoteAdapterIntent.putExtra(WidgetRemoteViewsFactoryService.EXTRA_TARGET,
+                mOptions.target);
+        remoteAdapterIntent.putExtra(WidgetRemoteViewsFactoryService.EXTRA_IS_MINI,
+                mRemoteAdapterMini);
+
+        // TODO: is this setData call really necessary?
+        remoteAdapterIntent.setData(Uri.parse(remoteAdapterIntent.toUri(Intent.URI_INTENT_SCHEME)));
+        views.setRemoteAdapter(mRemoteAdapterViewId, remoteAdapterIntent);
+    }
+
+    private static class WidgetGroup {
+        final Options options;
+        final List<Integer> appWidgetIds = new ArrayList<>();
+
+        WidgetGroup(Options options) {
+            this.options = options;
+        }
+    }
 }
@@ -20,6 +20,8 @@ import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
+import android.graphics.drawable.Icon;
+import android.os.Build;
 import android.widget.RemoteViews;
 
 /**
@@ -83,6 +85,22 @@ public class WidgetViewBuilder implements ViewBuilder {
         mRemoteViews.setImageViewBitmap(viewId, bitmap);
     }
 
+    @Override
+    public boolean setImageViewResource(int viewId, String packageName, int resId) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return false;
+        }
+
+        // Only the package name and resource ID are parceled; the host loads the drawable.
+        mRemoteViews.setImageViewIcon(viewId, Icon.createWithResource(packageName, resId));
+        return true;
+    }
+
+    @Override
+    public void setImageViewColorFilter(int viewId, int color) {
+        mRemoteViews.setInt(viewId, "setColorFilter", color);
+    }
+
     @Override
     public void setViewContentDescription(int viewId, String contentDescription) {
         mRemoteViews.setContentDescription(viewId, contentDescription);
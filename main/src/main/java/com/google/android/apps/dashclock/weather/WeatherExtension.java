@@ -29,6 +29,7 @@ import android.location.LocationProvider;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
@@ -37,7 +38,7 @@ import android.preference.PreferenceManager;
 import android.text.TextUtils;
 
 import com.google.android.apps.dashclock.LogUtils;
-import com.google.android.apps.dashclock.api.DashClockExtension;
+import com.google.android.apps.dashclock.api.CachingDashClockExtension;
 import com.google.android.apps.dashclock.api.ExtensionData;
 import com.google.android.apps.dashclock.configuration.AppChooserPreference;
 import com.google.android.gms.common.ConnectionResult;
@@ -71,7 +72,7 @@ import static com.google.android.gms.location.LocationServices.FusedLocationApi;
 /**
  * A local weather and forecast extension.
  */
-public class WeatherExtension extends DashClockExtension {
+public class WeatherExtension extends CachingDashClockExtension {
     private static final String TAG = LogUtils.makeLogTag(WeatherExtension.class);
 
     public static final String ACTION_RECEIVED_LOCATION
@@ -86,8 +87,6 @@ public class WeatherExtension extends DashClockExtension {
 
     public static final String STATE_WEATHER_LAST_BACKOFF_MILLIS
             = "state_weather_last_backoff_millis";
-    public static final String STATE_WEATHER_LAST_UPDATE_ELAPSED_MILLIS
-            = "state_weather_last_update_elapsed_millis";
 
     // At least 10 min b/w updates
     private static final int UPDATE_THROTTLE_MILLIS = 10 * MINUTES_MILLIS;
@@ -100,6 +99,9 @@ public class WeatherExtension extends DashClockExtension {
     // 60 sec timeout for location attempt
     private static final int LOCATION_TIMEOUT_MILLIS = 60 * SECONDS_MILLIS;
 
+    // Give up on an update if getting the location and weather takes longer than this
+    private static final int UPDATE_DEADLINE_MILLIS = LOCATION_TIMEOUT_MILLIS + 30 * SECONDS_MILLIS;
+
     private static final Criteria sLocationCriteria;
     private GoogleApiClient mLocationClient;
     private LocationRequest mLocationRequest;
@@ -139,13 +141,43 @@ public class WeatherExtension extends DashClockExtension {
                 WeatherRetryReceiver.getPendingIntent(this));
     }
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        PreferenceManager.getDefaultSharedPreferences(this)
+                .registerOnSharedPreferenceChangeListener(mPrefChangeListener);
+    }
+
+    private final SharedPreferences.OnSharedPreferenceChangeListener mPrefChangeListener
+            = new SharedPreferences.OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences sp, String key) {
+            if (PREF_WEATHER_UNITS.equals(key)
+                    || PREF_WEATHER_SHORTCUT.equals(key)
+                    || PREF_WEATHER_LOCATION.equals(key)) {
+                // Don't serve weather for the old settings from the cache.
+                invalidateCache();
+            }
+        }
+    };
+
     @Override
     protected void onInitialize(boolean isReconnect) {
         super.onInitialize(isReconnect);
     }
 
     @Override
-    protected void onUpdateData(int reason) {
+    protected long getUpdateDeadlineMillis(int reason) {
+        return UPDATE_DEADLINE_MILLIS;
+    }
+
+    @Override
+    protected long getCacheTtlMillis(int reason) {
+        return (reason == UPDATE_REASON_INITIAL) ? 0 : UPDATE_THROTTLE_MILLIS;
+    }
+
+    @Override
+    protected void onRefreshData(int reason, UpdateRequest request) {
         if (mServiceThreadHandler == null) {
             // Get handle to background thread
             mServiceThreadHandler = new Handler(Looper.myLooper());
@@ -158,21 +190,13 @@ public class WeatherExtension extends DashClockExtension {
 
         setWeatherUnits(sWeatherUnits);
 
-        long lastUpdateElapsedMillis = sp.getLong(STATE_WEATHER_LAST_UPDATE_ELAPSED_MILLIS,
-                -UPDATE_THROTTLE_MILLIS);
-        long nowElapsedMillis = SystemClock.elapsedRealtime();
-        if (reason != UPDATE_REASON_INITIAL && reason != UPDATE_REASON_MANUAL &&
-                nowElapsedMillis < lastUpdateElapsedMillis + UPDATE_THROTTLE_MILLIS) {
-            LOGD(TAG, "Throttling weather update attempt.");
-            return;
-        }
-
         LOGD(TAG, "Attempting weather update; reason=" + reason);
 
         NetworkInfo ni = ((ConnectivityManager) getSystemService(
                 Context.CONNECTIVITY_SERVICE)).getActiveNetworkInfo();
         if (ni == null || !ni.isConnected()) {
             LOGD(TAG, "No network connection; not attempting to update weather.");
+            request.finish();
             return;
         }
 
@@ -187,7 +211,7 @@ public class WeatherExtension extends DashClockExtension {
             // San Francisco = 2487956
             LocationInfo locationInfo = new LocationInfo();
             locationInfo.woeids = Arrays.asList(manualLocationWoeid);
-            tryPublishWeatherUpdateFromLocationInfo(locationInfo);
+            tryPublishWeatherUpdateFromLocationInfo(request, locationInfo);
             return;
         }
 
@@ -272,6 +296,7 @@ public class WeatherExtension extends DashClockExtension {
                                 public void run() {
                                     LOGE(TAG, "Play Services location request timed out.");
                                     disableOneTimeLocationListener();
+                                    finishCurrentUpdateRequest();
                                     scheduleRetry();
                                 }
                             }, LOCATION_TIMEOUT_MILLIS);
@@ -312,8 +337,9 @@ public class WeatherExtension extends DashClockExtension {
         LocationManager lm = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
         String provider = lm.getBestProvider(sLocationCriteria, true);
         if (TextUtils.isEmpty(provider)) {
-            publishErrorUpdate(new CantGetWeatherException(false, R.string.no_location_data,
-                    "No available location providers matching criteria."));
+            publishErrorUpdate(getCurrentUpdateRequest(),
+                    new CantGetWeatherException(false, R.string.no_location_data,
+                            "No available location providers matching criteria."));
             return;
         }
 
@@ -334,6 +360,7 @@ public class WeatherExtension extends DashClockExtension {
                 public void run() {
                     LOGE(TAG, "LocationManager location request timed out.");
                     disableOneTimeLocationListener();
+                    finishCurrentUpdateRequest();
                     scheduleRetry();
                 }
             }, LOCATION_TIMEOUT_MILLIS);
@@ -363,6 +390,7 @@ public class WeatherExtension extends DashClockExtension {
         public void onStatusChanged(String provider, int status, Bundle extras) {
             LOGD(TAG, "Network location provider status change: " + status);
             if (status == LocationProvider.TEMPORARILY_UNAVAILABLE) {
+                finishCurrentUpdateRequest();
                 scheduleRetry();
                 disableOneTimeLocationListener();
             }
@@ -406,6 +434,8 @@ public class WeatherExtension extends DashClockExtension {
     @Override
     public void onDestroy() {
         super.onDestroy();
+        PreferenceManager.getDefaultSharedPreferences(this)
+                .unregisterOnSharedPreferenceChangeListener(mPrefChangeListener);
         if (mLocationClient != null) {
             mLocationClient.disconnect();
         }
@@ -413,40 +443,92 @@ public class WeatherExtension extends DashClockExtension {
         disableOneTimeLocationListener();
     }
 
-    private void tryPublishWeatherUpdateFromGeolocation(Location location) {
-        try {
-            LOGD(TAG, "Using location: " + location.getLatitude() + "," + location.getLongitude());
-            tryPublishWeatherUpdateFromLocationInfo(getLocationInfo(location));
-        } catch (CantGetWeatherException e) {
-            publishErrorUpdate(e);
-            if (e.isRetryable()) {
-                scheduleRetry();
-            }
+    private void finishCurrentUpdateRequest() {
+        UpdateRequest request = getCurrentUpdateRequest();
+        if (request != null) {
+            request.finish();
+        }
+    }
+
+    /**
+     * Looks up the weather for the given location on a background thread, publishing it (or an
+     * error) as the result of the update request that is current once the location is known.
+     * Location requests outlive individual update requests, so the request that started them may
+     * have been superseded by now.
+     */
+    private void tryPublishWeatherUpdateFromGeolocation(final Location location) {
+        final UpdateRequest request = getCurrentUpdateRequest();
+        if (request == null) {
+            LOGD(TAG, "Got a location, but no weather update is pending.");
+            return;
         }
+
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    LOGD(TAG, "Using location: " + location.getLatitude() + ","
+                            + location.getLongitude());
+                    publishWeatherUpdateFromLocationInfo(request, getLocationInfo(location));
+                } catch (CantGetWeatherException e) {
+                    publishErrorUpdate(request, e);
+                    if (e.isRetryable()) {
+                        scheduleRetry();
+                    }
+                }
+            }
+        });
     }
 
-    private void tryPublishWeatherUpdateFromLocationInfo(LocationInfo locationInfo) {
+    /**
+     * Fetches the weather for the given location on a background thread, so that the extension
+     * thread stays free while the request is in flight.
+     */
+    private void tryPublishWeatherUpdateFromLocationInfo(final UpdateRequest request,
+            final LocationInfo locationInfo) {
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                publishWeatherUpdateFromLocationInfo(request, locationInfo);
+            }
+        });
+    }
+
+    private void publishWeatherUpdateFromLocationInfo(UpdateRequest request,
+            LocationInfo locationInfo) {
+        if (request.isCancelled()) {
+            return;
+        }
+
         try {
-            publishWeatherUpdate(getWeatherForLocationInfo(locationInfo));
+            publishWeatherUpdate(request, getWeatherForLocationInfo(locationInfo));
         } catch (CantGetWeatherException e) {
-            publishErrorUpdate(e);
+            publishErrorUpdate(request, e);
             if (e.isRetryable()) {
                 scheduleRetry();
             }
         }
     }
 
-    private void publishErrorUpdate(CantGetWeatherException e) {
+    private void publishErrorUpdate(UpdateRequest request, CantGetWeatherException e) {
         LOGE(TAG, "Showing a weather extension error", e);
-        publishUpdate(new ExtensionData()
+        if (request == null) {
+            return;
+        }
+
+        boolean published = request.publish(new ExtensionData()
                 .visible(true)
                 .clickIntent(sWeatherIntent)
                 .icon(R.drawable.ic_weather_clear)
                 .status(getString(R.string.status_none))
                 .expandedBody(getString(e.getUserFacingErrorStringId())));
+        if (published) {
+            // Retry on the next update rather than serving the error from the cache.
+            invalidateCache();
+        }
     }
 
-    private void publishWeatherUpdate(WeatherData weatherData) {
+    private void publishWeatherUpdate(UpdateRequest request, WeatherData weatherData) {
         String temperature = (weatherData.temperature != WeatherData.INVALID_TEMPERATURE)
                 ? getString(R.string.temperature_template, weatherData.temperature)
                 : getString(R.string.status_none);
@@ -482,7 +564,7 @@ public class WeatherExtension extends DashClockExtension {
                     .append(SimpleDateFormat.getDateTimeInstance().format(new Date()));
         }
 
-        publishUpdate(new ExtensionData()
+        boolean published = request.publish(new ExtensionData()
                 .visible(true)
                 .clickIntent(sWeatherIntent)
                 .status(temperature)
@@ -491,11 +573,12 @@ public class WeatherExtension extends DashClockExtension {
                         weatherData.conditionText))
                 .icon(conditionIconId)
                 .expandedBody(expandedBody.toString()));
+        if (!published) {
+            LOGD(TAG, "Dropping weather for a cancelled update request.");
+            return;
+        }
 
-        // Mark that a successful weather update has been pushed
+        // A successful weather update has been pushed
         resetAndCancelRetries();
-        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(this);
-        sp.edit().putLong(STATE_WEATHER_LAST_UPDATE_ELAPSED_MILLIS,
-                SystemClock.elapsedRealtime()).commit();
     }
 }
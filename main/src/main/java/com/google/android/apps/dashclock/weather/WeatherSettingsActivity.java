@@ -20,10 +20,6 @@ import com.google.android.apps.dashclock.configuration.BaseSettingsActivity;
 
 import net.nurik.roman.dashclock.R;
 
-import android.content.SharedPreferences;
-import android.os.Bundle;
-import android.preference.PreferenceManager;
-
 public class WeatherSettingsActivity extends BaseSettingsActivity {
     @Override
     protected void setupSimplePreferencesScreen() {
@@ -40,13 +36,4 @@ public class WeatherSettingsActivity extends BaseSettingsActivity {
         bindPreferenceSummaryToValue(mFragment.findPreference(WeatherExtension.PREF_WEATHER_SHORTCUT));
         bindPreferenceSummaryToValue(mFragment.findPreference(WeatherExtension.PREF_WEATHER_LOCATION));
     }
-
-    @Override
-    protected void onStop() {
-        super.onStop();
-
-        // Clear out the throttle since settings may have changed.
-        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(this);
-        sp.edit().remove(WeatherExtension.STATE_WEATHER_LAST_UPDATE_ELAPSED_MILLIS).apply();
-    }
 }